@@ -0,0 +1,41 @@
+package com.wedevol.xmpp.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.smack.packet.Stanza;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.wedevol.xmpp.server.FcmPacketExtension;
+
+/**
+ * Wrapping of the JSON messages into XMPP stanzas
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FcmPacketExtensionBenchmark {
+
+    private final FcmPacketExtension extension = new FcmPacketExtension(
+            "{\"to\":\"cHQjBQXq2Xs:APA91bH3Kx8a6g1EAuVbE8XgqvN5vBxP4Bvx2wHG3ZmJ4u0S1ePGbK9\",\"message_id\":"
+                    + "\"m-1a2b3c-4d5e6f\",\"data\":{\"message\":\"This is the simple sample message\"}}");
+
+    @Benchmark
+    public CharSequence toXML() {
+        return extension.toXML(null);
+    }
+
+    @Benchmark
+    public Stanza toPacket() {
+        return extension.toPacket();
+    }
+
+}
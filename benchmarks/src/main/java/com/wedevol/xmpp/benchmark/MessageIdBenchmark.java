@@ -0,0 +1,60 @@
+package com.wedevol.xmpp.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.wedevol.xmpp.util.MessageIdGenerator;
+import com.wedevol.xmpp.util.SequenceMessageIdGenerator;
+import com.wedevol.xmpp.util.UuidMessageIdGenerator;
+import com.wedevol.xmpp.util.Util;
+
+/**
+ * Message id generation: the default sequence generator against the original UUID one, single-threaded and contended
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageIdBenchmark {
+
+    private final MessageIdGenerator sequence = new SequenceMessageIdGenerator();
+    private final MessageIdGenerator uuid = new UuidMessageIdGenerator();
+
+    @Benchmark
+    public String getUniqueMessageId() {
+        return Util.getUniqueMessageId();
+    }
+
+    @Benchmark
+    public String sequence() {
+        return sequence.nextId();
+    }
+
+    @Benchmark
+    public String uuid() {
+        return uuid.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String sequenceContended() {
+        return sequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String uuidContended() {
+        return uuid.nextId();
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.wedevol.xmpp.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.wedevol.xmpp.bean.CcsInMessage;
+import com.wedevol.xmpp.bean.CcsInPacket;
+import com.wedevol.xmpp.bean.CcsOutMessage;
+import com.wedevol.xmpp.util.BroadcastTemplate;
+import com.wedevol.xmpp.util.CcsPacketDecoder;
+import com.wedevol.xmpp.util.MessageMapper;
+
+/**
+ * Serialization and parsing of the CCS messages
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageMapperBenchmark {
+
+    private static final String UPSTREAM_JSON = "{\"category\":\"com.wedevol.app\",\"data\":{\"action\":\"ECHO\","
+            + "\"message\":\"This is the simple sample message\"},\"message_id\":\"m-1a2b3c-4d5e6f\","
+            + "\"from\":\"cHQjBQXq2Xs:APA91bH3Kx8a6g1EAuVbE8XgqvN5vBxP4Bvx2wHG3ZmJ4u0S1ePGbK9\"}";
+    private static final String ACK_JSON = "{\"from\":\"cHQjBQXq2Xs:APA91bH3Kx8a6g1EAuVbE8XgqvN5vBxP4Bvx2wHG3ZmJ4u0\","
+            + "\"message_id\":\"m-1a2b3c-4d5e6f\",\"message_type\":\"ack\"}";
+
+    private CcsOutMessage outMessage;
+    private Map<String, Object> upstreamMap;
+    private BroadcastTemplate template;
+
+    @Setup
+    public void setup() {
+        final Map<String, String> dataPayload = new HashMap<>();
+        dataPayload.put("message", "This is the simple sample message");
+        dataPayload.put("action", "ECHO");
+        outMessage = new CcsOutMessage("cHQjBQXq2Xs:APA91bH3Kx8a6g1EAuVbE8XgqvN5vBxP4Bvx2wHG3ZmJ4u0S1ePGbK9",
+                "m-1a2b3c-4d5e6f", dataPayload);
+        outMessage.setPriority("high");
+        outMessage.setTimeToLive(3600);
+        upstreamMap = MessageMapper.toMapFromJsonString(UPSTREAM_JSON);
+        template = new BroadcastTemplate(outMessage);
+    }
+
+    @Benchmark
+    public String toJsonString() {
+        return MessageMapper.toJsonString(outMessage);
+    }
+
+    /**
+     * Baseline: the original serialization through an intermediate map
+     */
+    @Benchmark
+    public String toJsonStringViaMap() {
+        return MessageMapper.toJsonString(MessageMapper.mapFrom(outMessage));
+    }
+
+    @Benchmark
+    public String broadcastTemplate() {
+        return template.toJsonString(outMessage.getTo(), outMessage.getMessageId());
+    }
+
+    @Benchmark
+    public String createJsonAck() {
+        return MessageMapper.createJsonAck(outMessage.getTo(), outMessage.getMessageId());
+    }
+
+    @Benchmark
+    public Map<String, Object> toMapFromJsonStringUpstream() {
+        return MessageMapper.toMapFromJsonString(UPSTREAM_JSON);
+    }
+
+    @Benchmark
+    public Map<String, Object> toMapFromJsonStringAck() {
+        return MessageMapper.toMapFromJsonString(ACK_JSON);
+    }
+
+    @Benchmark
+    public CcsInMessage ccsInMessageFrom() {
+        return MessageMapper.ccsInMessageFrom(upstreamMap);
+    }
+
+    @Benchmark
+    public CcsInPacket decodeUpstream() {
+        return CcsPacketDecoder.decode(UPSTREAM_JSON);
+    }
+
+    @Benchmark
+    public CcsInPacket decodeAck() {
+        return CcsPacketDecoder.decode(ACK_JSON);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.wedevol.xmpp.server;
+
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.smack.packet.Stanza;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.wedevol.xmpp.util.TrafficLogger;
+
+/**
+ * Dispatch of the incoming stanzas in {@link CcsClient#processStanza(CcsConnection, Stanza)} for acks and nacks (the
+ * bulk of the inbound traffic), without a socket. It lives in the server package to create a connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessStanzaBenchmark {
+
+    private CcsClient client;
+    private CcsConnection connection;
+    private Stanza ack;
+    private Stanza nack;
+
+    @Setup
+    public void setup() {
+        client = new CcsClient("123456789", "api-key", false);
+        client.getTrafficLogger().setMode(TrafficLogger.Mode.OFF);
+        connection = new CcsConnection(client, 0);
+        ack = new FcmPacketExtension("{\"from\":\"cHQjBQXq2Xs:APA91bH3Kx8a6g1EAuVbE8XgqvN5vBxP4Bvx2wHG3ZmJ4u0\","
+                + "\"message_id\":\"m-1a2b3c-4d5e6f\",\"message_type\":\"ack\"}").toPacket();
+        nack = new FcmPacketExtension("{\"from\":\"cHQjBQXq2Xs:APA91bH3Kx8a6g1EAuVbE8XgqvN5vBxP4Bvx2wHG3ZmJ4u0\","
+                + "\"message_id\":\"m-1a2b3c-4d5e6f\",\"message_type\":\"nack\",\"error\":\"BAD_ACK\","
+                + "\"error_description\":\"Invalid ack\"}").toPacket();
+    }
+
+    @Benchmark
+    public void processAck() {
+        client.processStanza(connection, ack);
+    }
+
+    @Benchmark
+    public void processNack() {
+        client.processStanza(connection, nack);
+    }
+
+}
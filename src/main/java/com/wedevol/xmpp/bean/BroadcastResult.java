@@ -0,0 +1,53 @@
+package com.wedevol.xmpp.bean;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents the outcome of a broadcast: how many recipients were sent, acked, nacked or failed (e.g. timeout)
+ */
+public class BroadcastResult {
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder nacked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public void incrementSent() {
+        sent.increment();
+    }
+
+    public void add(SendResult result) {
+        if (result.isAcked()) {
+            acked.increment();
+        } else {
+            nacked.increment();
+        }
+    }
+
+    public void incrementFailed() {
+        failed.increment();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getAcked() {
+        return acked.sum();
+    }
+
+    public long getNacked() {
+        return nacked.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "sent: " + getSent() + ", acked: " + getAcked() + ", nacked: " + getNacked() + ", failed: "
+                + getFailed();
+    }
+
+}
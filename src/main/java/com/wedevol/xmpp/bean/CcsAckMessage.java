@@ -0,0 +1,38 @@
+package com.wedevol.xmpp.bean;
+
+/**
+ * Represents an ACK from FCM CCS for a downstream message
+ */
+public class CcsAckMessage implements CcsInPacket {
+
+    // Unique id of the acknowledged message
+    private final String messageId;
+    // Registration ID of the recipient
+    private final String from;
+    // Canonical registration ID, if the recipient token changed
+    private final String registrationId;
+
+    public CcsAckMessage(String messageId, String from, String registrationId) {
+        this.messageId = messageId;
+        this.from = from;
+        this.registrationId = registrationId;
+    }
+
+    @Override
+    public String getMessageType() {
+        return "ack";
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+}
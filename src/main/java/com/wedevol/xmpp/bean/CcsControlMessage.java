@@ -0,0 +1,24 @@
+package com.wedevol.xmpp.bean;
+
+/**
+ * Represents a control message from FCM CCS (e.g. CONNECTION_DRAINING)
+ */
+public class CcsControlMessage implements CcsInPacket {
+
+    // Type of the control message
+    private final String controlType;
+
+    public CcsControlMessage(String controlType) {
+        this.controlType = controlType;
+    }
+
+    @Override
+    public String getMessageType() {
+        return "control";
+    }
+
+    public String getControlType() {
+        return controlType;
+    }
+
+}
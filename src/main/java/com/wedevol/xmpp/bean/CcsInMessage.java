@@ -5,7 +5,7 @@ import java.util.Map;
 /**
  * Represents an incoming message from FCM CCS
  */
-public class CcsInMessage {
+public class CcsInMessage implements CcsInPacket {
 
     // Sender registration ID
     private String from;
@@ -23,6 +23,11 @@ public class CcsInMessage {
         this.dataPayload = dataPayload;
     }
 
+    @Override
+    public String getMessageType() {
+        return null; // upstream messages do not have a message type
+    }
+
     public String getFrom() {
         return from;
     }
@@ -0,0 +1,14 @@
+package com.wedevol.xmpp.bean;
+
+/**
+ * Represents any decoded packet received from FCM CCS: an upstream message, an ack, a nack, a receipt or a control
+ * message
+ */
+public interface CcsInPacket {
+
+    /**
+     * @return the FCM message_type of the packet, or null for an upstream message
+     */
+    String getMessageType();
+
+}
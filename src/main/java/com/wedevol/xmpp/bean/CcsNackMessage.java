@@ -0,0 +1,45 @@
+package com.wedevol.xmpp.bean;
+
+/**
+ * Represents a NACK from FCM CCS for a downstream message
+ */
+public class CcsNackMessage implements CcsInPacket {
+
+    // Unique id of the rejected message
+    private final String messageId;
+    // Registration ID of the recipient
+    private final String from;
+    // FCM error code
+    private final String error;
+    // FCM error description
+    private final String errorDescription;
+
+    public CcsNackMessage(String messageId, String from, String error, String errorDescription) {
+        this.messageId = messageId;
+        this.from = from;
+        this.error = error;
+        this.errorDescription = errorDescription;
+    }
+
+    @Override
+    public String getMessageType() {
+        return "nack";
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.wedevol.xmpp.bean;
+
+import java.util.Map;
+
+/**
+ * Represents a delivery receipt from FCM CCS for a downstream message that requested it
+ */
+public class CcsReceiptMessage implements CcsInPacket {
+
+    // Unique id of the receipt (it must be acknowledged like an upstream message)
+    private final String messageId;
+    // Sender of the receipt (FCM)
+    private final String from;
+    // App's package
+    private final String category;
+    // Receipt data: message_status, original_message_id, device_registration_id, message_sent_timestamp
+    private final Map<String, String> dataPayload;
+
+    public CcsReceiptMessage(String messageId, String from, String category, Map<String, String> dataPayload) {
+        this.messageId = messageId;
+        this.from = from;
+        this.category = category;
+        this.dataPayload = dataPayload;
+    }
+
+    @Override
+    public String getMessageType() {
+        return "receipt";
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public Map<String, String> getDataPayload() {
+        return dataPayload;
+    }
+
+    public String getMessageStatus() {
+        return dataPayload != null ? dataPayload.get("message_status") : null;
+    }
+
+    public String getOriginalMessageId() {
+        return dataPayload != null ? dataPayload.get("original_message_id") : null;
+    }
+
+    public String getDeviceRegistrationId() {
+        return dataPayload != null ? dataPayload.get("device_registration_id") : null;
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.wedevol.xmpp.bean;
+
+/**
+ * Represents the delivery of a downstream message to the device, matched from its FCM delivery receipt
+ */
+public class DeliveryEvent {
+
+    // Delivery receipt sent by FCM
+    private final CcsReceiptMessage receipt;
+    // Time from the send to the FCM ack, or -1 if unknown
+    private final long sendToAckMillis;
+    // Time from the send to the receipt, or -1 if unknown
+    private final long sendToDeliveryMillis;
+
+    public DeliveryEvent(CcsReceiptMessage receipt, long sendToAckMillis, long sendToDeliveryMillis) {
+        this.receipt = receipt;
+        this.sendToAckMillis = sendToAckMillis;
+        this.sendToDeliveryMillis = sendToDeliveryMillis;
+    }
+
+    public CcsReceiptMessage getReceipt() {
+        return receipt;
+    }
+
+    /**
+     * @return the id of the delivered downstream message
+     */
+    public String getMessageId() {
+        return receipt.getOriginalMessageId();
+    }
+
+    public String getDeviceRegistrationId() {
+        return receipt.getDeviceRegistrationId();
+    }
+
+    public String getMessageStatus() {
+        return receipt.getMessageStatus();
+    }
+
+    /**
+     * @return true if the message was tracked since its send, so its latencies are known
+     */
+    public boolean isTracked() {
+        return sendToDeliveryMillis >= 0;
+    }
+
+    public long getSendToAckMillis() {
+        return sendToAckMillis;
+    }
+
+    public long getSendToDeliveryMillis() {
+        return sendToDeliveryMillis;
+    }
+
+    /**
+     * @return the time from the FCM ack to the receipt, or -1 if unknown
+     */
+    public long getAckToDeliveryMillis() {
+        return sendToAckMillis >= 0 && sendToDeliveryMillis >= 0 ? sendToDeliveryMillis - sendToAckMillis : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "DELIVERY " + getMessageId() + " " + getMessageStatus();
+    }
+
+}
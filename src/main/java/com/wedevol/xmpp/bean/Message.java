@@ -1,5 +1,6 @@
 package com.wedevol.xmpp.bean;
 
+import com.wedevol.xmpp.util.TimingWheel.Timeout;
 import com.wedevol.xmpp.util.Util;
 
 /**
@@ -7,16 +8,41 @@ import com.wedevol.xmpp.util.Util;
  */
 public class Message {
 
+    private String messageId;
     private Long timestamp; // in millis
     private String jsonRequest;
+    private MessagePriority priority;
+    private volatile Timeout ackTimeout; // ack deadline while the message is in flight, not persisted
 
-    public static Message from(String jsonRequest) {
-        return new Message(Util.getCurrentTimeMillis(), jsonRequest);
+    public static Message from(String messageId, String jsonRequest) {
+        return from(messageId, jsonRequest, MessagePriority.NORMAL);
     }
 
-    private Message(Long timestamp, String jsonRequest) {
+    public static Message from(String messageId, String jsonRequest, MessagePriority priority) {
+        return new Message(messageId, Util.getCurrentTimeMillis(), jsonRequest, priority);
+    }
+
+    public static Message from(String messageId, Long timestamp, String jsonRequest) {
+        return from(messageId, timestamp, jsonRequest, MessagePriority.NORMAL);
+    }
+
+    public static Message from(String messageId, Long timestamp, String jsonRequest, MessagePriority priority) {
+        return new Message(messageId, timestamp, jsonRequest, priority);
+    }
+
+    private Message(String messageId, Long timestamp, String jsonRequest, MessagePriority priority) {
+        this.messageId = messageId;
         this.timestamp = timestamp;
         this.jsonRequest = jsonRequest;
+        this.priority = priority;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
     }
 
     public Long getTimestamp() {
@@ -35,12 +61,30 @@ public class Message {
         this.jsonRequest = jsonRequest;
     }
 
+    public MessagePriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(MessagePriority priority) {
+        this.priority = priority;
+    }
+
+    public Timeout getAckTimeout() {
+        return ackTimeout;
+    }
+
+    public void setAckTimeout(Timeout ackTimeout) {
+        this.ackTimeout = ackTimeout;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
+        result = prime * result + (messageId == null ? 0 : messageId.hashCode());
         result = prime * result + (jsonRequest == null ? 0 : jsonRequest.hashCode());
         result = prime * result + (timestamp == null ? 0 : timestamp.hashCode());
+        result = prime * result + (priority == null ? 0 : priority.hashCode());
         return result;
     }
 
@@ -56,6 +100,13 @@ public class Message {
             return false;
         }
         Message other = (Message) obj;
+        if (messageId == null) {
+            if (other.messageId != null) {
+                return false;
+            }
+        } else if (!messageId.equals(other.messageId)) {
+            return false;
+        }
         if (jsonRequest == null) {
             if (other.jsonRequest != null) {
                 return false;
@@ -70,6 +121,9 @@ public class Message {
         } else if (!timestamp.equals(other.timestamp)) {
             return false;
         }
+        if (priority != other.priority) {
+            return false;
+        }
         return true;
     }
 
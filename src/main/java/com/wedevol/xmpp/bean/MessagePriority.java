@@ -0,0 +1,18 @@
+package com.wedevol.xmpp.bean;
+
+/**
+ * Outbound lane of a downstream message. The high priority messages (e.g. OTPs, call notifications) are written and
+ * resent ahead of the normal ones.
+ */
+public enum MessagePriority {
+
+    HIGH, NORMAL;
+
+    /**
+     * @param fcmPriority the FCM priority of the message ("high" or "normal"), it can be null
+     */
+    public static MessagePriority of(String fcmPriority) {
+        return "high".equalsIgnoreCase(fcmPriority) ? HIGH : NORMAL;
+    }
+
+}
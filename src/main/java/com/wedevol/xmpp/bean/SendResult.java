@@ -0,0 +1,53 @@
+package com.wedevol.xmpp.bean;
+
+/**
+ * Represents the FCM CCS answer (ACK or NACK) for a downstream message
+ */
+public class SendResult {
+
+    // Unique id of the downstream message
+    private String messageId;
+    // True if FCM answered with an ACK
+    private boolean acked;
+    // FCM error code of the NACK
+    private String errorCode;
+    // FCM error description of the NACK
+    private String errorDescription;
+
+    public static SendResult ack(String messageId) {
+        return new SendResult(messageId, true, null, null);
+    }
+
+    public static SendResult nack(String messageId, String errorCode, String errorDescription) {
+        return new SendResult(messageId, false, errorCode, errorDescription);
+    }
+
+    private SendResult(String messageId, boolean acked, String errorCode, String errorDescription) {
+        this.messageId = messageId;
+        this.acked = acked;
+        this.errorCode = errorCode;
+        this.errorDescription = errorDescription;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public boolean isAcked() {
+        return acked;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+
+    @Override
+    public String toString() {
+        return acked ? "ACK " + messageId : "NACK " + messageId + " " + errorCode;
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.wedevol.xmpp.server;
+
+import com.wedevol.xmpp.bean.SendResult;
+
+/**
+ * Receives the per-recipient results of a broadcast. The methods are called on the threads that process the incoming
+ * stanzas, so they must not block.
+ */
+public interface BroadcastListener {
+
+    /**
+     * Called when FCM answered the message of a recipient with an ACK or a NACK
+     */
+    void onResult(String recipient, SendResult result);
+
+    /**
+     * Called when the message of a recipient could not be sent or was not answered in time
+     */
+    default void onFailure(String recipient, Throwable error) {
+        // nothing by default
+    }
+
+}
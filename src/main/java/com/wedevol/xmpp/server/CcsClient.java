@@ -1,49 +1,69 @@
 package com.wedevol.xmpp.server;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import javax.net.ssl.SSLContext;
-import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
-import org.jivesoftware.smack.ConnectionListener;
-import org.jivesoftware.smack.ReconnectionListener;
-import org.jivesoftware.smack.ReconnectionManager;
-import org.jivesoftware.smack.SASLAuthentication;
-import org.jivesoftware.smack.SmackConfiguration;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import org.jivesoftware.smack.SmackException;
-import org.jivesoftware.smack.SmackException.NotConnectedException;
-import org.jivesoftware.smack.StanzaListener;
-import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.provider.ExtensionElementProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
-import org.jivesoftware.smack.roster.Roster;
-import org.jivesoftware.smack.sm.predicates.ForEveryStanza;
-import org.jivesoftware.smack.tcp.XMPPTCPConnection;
-import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
-import org.jivesoftware.smackx.ping.PingFailedListener;
-import org.jivesoftware.smackx.ping.PingManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
+import com.wedevol.xmpp.bean.BroadcastResult;
+import com.wedevol.xmpp.bean.CcsAckMessage;
+import com.wedevol.xmpp.bean.CcsControlMessage;
 import com.wedevol.xmpp.bean.CcsInMessage;
+import com.wedevol.xmpp.bean.CcsInPacket;
+import com.wedevol.xmpp.bean.CcsNackMessage;
 import com.wedevol.xmpp.bean.CcsOutMessage;
+import com.wedevol.xmpp.bean.CcsReceiptMessage;
+import com.wedevol.xmpp.bean.DeliveryEvent;
 import com.wedevol.xmpp.bean.Message;
+import com.wedevol.xmpp.bean.MessagePriority;
+import com.wedevol.xmpp.bean.SendResult;
 import com.wedevol.xmpp.util.BackOffStrategy;
+import com.wedevol.xmpp.util.BroadcastTemplate;
+import com.wedevol.xmpp.util.CachingTokenResolver;
+import com.wedevol.xmpp.util.CcsPacketDecoder;
+import com.wedevol.xmpp.util.DeadTokenFilter;
+import com.wedevol.xmpp.util.DefaultMetricsRegistry;
+import com.wedevol.xmpp.util.DeliveryTracker;
+import com.wedevol.xmpp.util.DuplicateFilter;
+import com.wedevol.xmpp.util.JmxMetricsExporter;
+import com.wedevol.xmpp.util.MessageJournal;
 import com.wedevol.xmpp.util.MessageMapper;
+import com.wedevol.xmpp.util.MetricsRegistry;
+import com.wedevol.xmpp.util.PendingMessageStore;
+import com.wedevol.xmpp.util.RecipientRateLimiter;
+import com.wedevol.xmpp.util.RetryScheduler;
+import com.wedevol.xmpp.util.StripedExecutor;
+import com.wedevol.xmpp.util.TimingWheel;
+import com.wedevol.xmpp.util.TimingWheel.Timeout;
+import com.wedevol.xmpp.util.TokenBucket;
+import com.wedevol.xmpp.util.TokenResolver;
+import com.wedevol.xmpp.util.TrafficLogger;
 import com.wedevol.xmpp.util.Util;
 
 /**
@@ -51,24 +71,127 @@ import com.wedevol.xmpp.util.Util;
  * Smack implementation of a client for FCM Cloud Connection Server. Most of it has been taken more or less verbatim
  * from Google's documentation: <a href=
  * "https://firebase.google.com/docs/cloud-messaging/xmpp-server-ref">https://firebase.google.com/docs/cloud-messaging/xmpp-server-ref</a>
+ * <p>
+ * The client owns a pool of {@link CcsConnection} (one by default). Downstream messages are spread across the
+ * available connections according to the {@link DispatchStrategy}, and the acks, nacks and upstream messages are
+ * handled on the connection that received them.
  *
  * @author Charz++
  */
-public class CcsClient implements StanzaListener, ReconnectionListener, ConnectionListener, PingFailedListener {
+public class CcsClient {
 
     private static final Logger logger = LoggerFactory.getLogger(CcsClient.class);
 
-    private XMPPTCPConnection xmppConn;
+    private static final int DEFAULT_POOL_SIZE = 1;
+    private static final long DEFAULT_SEND_TIMEOUT_IN_MILLI = 30000;
+    private static final long DEFAULT_ACK_TIMEOUT_IN_MILLI = 5000;
+    private static final int DEFAULT_MAX_ACK_TIMEOUTS = 3;
+    private static final int DEFAULT_UPSTREAM_THREADS = 4;
+    private static final int DEFAULT_UPSTREAM_QUEUE_CAPACITY = 1000;
+    private static final int DEFAULT_SERVER_ERROR_RETRIES = 3;
+    private static final long DEFAULT_SERVER_ERROR_RETRY_DELAY_IN_MILLI = 1000;
+    private static final double DEFAULT_SERVER_ERROR_RETRY_RATE = 100; // retries per second, of all the messages
+    private static final int DEFAULT_THROTTLE_RETRIES = 5;
+    private static final long DEFAULT_THROTTLE_RETRY_DELAY_IN_MILLI = 1000;
+
     private String apiKey = null;
     private boolean debuggable = false;
     private String username = null;
-    private Boolean isConnectionDraining = false;
-
-    // downstream messages to sync with acks and nacks
-    private final Map<String, Message> syncMessages = new ConcurrentHashMap<>();
-
-    // messages from backoff failures
-    private final Map<String, Message> pendingMessages = new ConcurrentHashMap<>();
+    private String host = Util.FCM_SERVER;
+    private int port = Util.FCM_PORT;
+    private boolean tlsEnabled = true;
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private DispatchStrategy dispatchStrategy = DispatchStrategy.LEAST_IN_FLIGHT;
+    private int windowCapacity = FlowControlWindow.DEFAULT_CAPACITY;
+    private FlowControlMode flowControlMode = FlowControlMode.QUEUE;
+    private int highPriorityWeight = FlowControlWindow.DEFAULT_HIGH_PRIORITY_WEIGHT;
+    private long sendTimeout = DEFAULT_SEND_TIMEOUT_IN_MILLI;
+    private long ackTimeout = DEFAULT_ACK_TIMEOUT_IN_MILLI;
+    private int maxAckTimeouts = DEFAULT_MAX_ACK_TIMEOUTS;
+    private Path journalPath = null;
+    private MessageJournal journal = null;
+    private MetricsRegistry metricsRegistry = new DefaultMetricsRegistry();
+    private CcsMetrics metrics;
+    private boolean jmxEnabled = true;
+    private JmxMetricsExporter jmxExporter = null;
+    private DeliveryTracker deliveryTracker = new DeliveryTracker();
+    private DeliveryListener deliveryListener = null;
+    private int upstreamThreads = DEFAULT_UPSTREAM_THREADS;
+    private int upstreamQueueCapacity = DEFAULT_UPSTREAM_QUEUE_CAPACITY;
+    private StripedExecutor upstreamExecutor = null;
+    private DuplicateFilter duplicateFilter = new DuplicateFilter();
+    private TokenResolver tokenResolver = null;
+    private DeadTokenFilter deadTokenFilter = new DeadTokenFilter();
+    private Path deadTokenPath = null;
+    private boolean isDeadTokenFilterOpen = false;
+    private TokenInvalidationListener tokenInvalidationListener = null;
+    private RecipientRateLimiter rateLimiter = new RecipientRateLimiter();
+    private boolean isRateLimiterStarted = false;
+    private volatile boolean isShutdown = false;
+    private int serverErrorRetries = DEFAULT_SERVER_ERROR_RETRIES;
+    private long serverErrorRetryDelay = DEFAULT_SERVER_ERROR_RETRY_DELAY_IN_MILLI;
+    private TokenBucket serverErrorRetryRate =
+            new TokenBucket(DEFAULT_SERVER_ERROR_RETRY_RATE, (int) DEFAULT_SERVER_ERROR_RETRY_RATE);
+    private int throttleRetries = DEFAULT_THROTTLE_RETRIES;
+    private long throttleRetryDelay = DEFAULT_THROTTLE_RETRY_DELAY_IN_MILLI;
+    private DeadLetterSink deadLetterSink = null;
+
+    // pooled connections to FCM CCS
+    private final List<CcsConnection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextConnectionId = new AtomicInteger();
+
+    // messages from backoff failures or that could not be assigned to a connection
+    private final PendingMessageStore pendingMessages = new PendingMessageStore();
+    // id of the latest pending message by "to|collapse_key" group
+    private final Map<String, String> pendingCollapseGroups = new ConcurrentHashMap<>();
+
+    // results of the asynchronous sends waiting for an ack or nack
+    private final Map<String, CompletableFuture<SendResult>> sendResults = new ConcurrentHashMap<>();
+
+    // messages delayed by the rate limiter
+    private final AtomicInteger rateLimitedCount = new AtomicInteger();
+    // back off of the messages nacked with a server error, until they are acked or dead lettered
+    private final Map<String, BackOffStrategy> serverErrorBackOffs = new ConcurrentHashMap<>();
+    // back off of the messages nacked because their recipient is over its FCM rate, until they are acked or dead
+    // lettered
+    private final Map<String, BackOffStrategy> throttleBackOffs = new ConcurrentHashMap<>();
+
+    // shared timer for the timing wheel and the retries
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2, runnable -> {
+        final Thread thread = new Thread(runnable, "ccs-client-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // retries of the failed writes and reconnections
+    private final RetryScheduler retryScheduler = new RetryScheduler(scheduler);
+
+    // feeders of the broadcasts
+    private final ExecutorService broadcastExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "ccs-client-broadcast");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // blocking connection attempts of the replacements of the draining connections
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "ccs-client-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // dispatches the delayed messages once due, so the tick thread of the timing wheel never writes to a connection
+    private final ExecutorService redispatchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "ccs-client-redispatch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // ack deadlines of the in-flight messages and asynchronous send timeouts (100 ms ticks)
+    private final TimingWheel timingWheel = new TimingWheel(100, 512);
+
+    // which incoming and outgoing stanzas are logged
+    private final TrafficLogger trafficLogger = new TrafficLogger();
 
     /**
      * Public constructor for the CCS Client
@@ -92,207 +215,237 @@ public class CcsClient implements StanzaListener, ReconnectionListener, Connecti
         this.apiKey = apiKey;
         this.debuggable = debuggable;
         this.username = projectId + "@" + Util.FCM_SERVER_AUTH_CONNECTION;
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.timingWheel.start(scheduler);
+        this.metrics = new CcsMetrics(metricsRegistry, this);
     }
 
     /**
-     * Connects to FCM Cloud Connection Server using the supplied credentials
+     * Connects the pool of connections to FCM Cloud Connection Server using the supplied credentials
      */
     public void connect() throws XMPPException, SmackException, IOException, InterruptedException,
             NoSuchAlgorithmException, KeyManagementException {
-        logger.info("Initiating connection ...");
-
-        isConnectionDraining = false; // Set connection draining to false when there is a new connection
-
-        // create connection configuration
-        XMPPTCPConnection.setUseStreamManagementResumptionDefault(true);
-        XMPPTCPConnection.setUseStreamManagementDefault(true);
-
-        final SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, null, new SecureRandom());
-        SmackConfiguration.DEBUG = debuggable;
-
-        final XMPPTCPConnectionConfiguration.Builder config = XMPPTCPConnectionConfiguration.builder();
-        logger.info("Connecting to the server ...");
-        config.setXmppDomain("FCM XMPP Client Connection Server");
-        config.setHost(Util.FCM_SERVER);
-        config.setPort(Util.FCM_PORT);
-        config.setSendPresence(false);
-        config.setSecurityMode(SecurityMode.ifpossible);
-        config.setCompressionEnabled(true);
-        config.setSocketFactory(sslContext.getSocketFactory());
-        config.setCustomSSLContext(sslContext);
-
-        xmppConn = new XMPPTCPConnection(config.build()); // Create the connection
-
-        xmppConn.connect(); // Connect
-
-        // Enable automatic reconnection and add the listener (if not, remove the the listener, the
-        // interface and the override methods)
-        ReconnectionManager.getInstanceFor(xmppConn).enableAutomaticReconnection();
-        ReconnectionManager.getInstanceFor(xmppConn).addReconnectionListener(this);
-
-        // Disable Roster at login (in XMPP the contact list is called a "roster")
-        Roster.getInstanceFor(xmppConn).setRosterLoadedAtLogin(false);
-
-        // Security checks
-        SASLAuthentication.unBlacklistSASLMechanism("PLAIN"); // FCM CCS requires a SASL PLAIN authentication mechanism
-        SASLAuthentication.blacklistSASLMechanism("DIGEST-MD5");
-        logger.info("SASL PLAIN authentication enabled ? {}", SASLAuthentication.isSaslMechanismRegistered("PLAIN"));
-        logger.info("Is compression enabled ? {}", xmppConn.isUsingCompression());
-        logger.info("Is the connection secure ? {}", xmppConn.isSecureConnection());
-
-        // Handle connection errors
-        xmppConn.addConnectionListener(this);
-
-        // Handle incoming packets and reject messages that are not from FCM CCS
-        xmppConn.addAsyncStanzaListener(this, stanza -> stanza.hasExtension(Util.FCM_ELEMENT_NAME, Util.FCM_NAMESPACE));
-
-        // Log all outgoing packets
-        xmppConn.addStanzaInterceptor(stanza -> logger.info("Sent: {}", stanza.toXML(null)), ForEveryStanza.INSTANCE);
-
-        // Set the ping interval
-        final PingManager pingManager = PingManager.getInstanceFor(xmppConn);
-        pingManager.setPingInterval(100);
-        pingManager.registerPingFailedListener(this);
-
-        xmppConn.login(username, apiKey);
-        logger.info("User logged in: {}", username);
+        if (isShutdown) {
+            throw new IllegalStateException("The client was disconnected and its threads were stopped");
+        }
+        if (journalPath != null && journal == null) {
+            journal = new MessageJournal(journalPath);
+            // the unanswered messages of the last run are sent when a connection is authenticated
+            journal.open().forEach(this::addPendingMessage);
+        }
+        if (deadTokenPath != null && !isDeadTokenFilterOpen) {
+            deadTokenFilter.open(deadTokenPath);
+            isDeadTokenFilterOpen = true;
+        }
+        if (!isRateLimiterStarted) {
+            rateLimiter.start(scheduler);
+            isRateLimiterStarted = true;
+        }
+        if (upstreamExecutor == null) {
+            upstreamExecutor = new StripedExecutor("ccs-client-upstream", upstreamThreads, upstreamQueueCapacity);
+        }
+        if (jmxEnabled && jmxExporter == null && metricsRegistry instanceof DefaultMetricsRegistry) {
+            jmxExporter = new JmxMetricsExporter((DefaultMetricsRegistry) metricsRegistry);
+            jmxExporter.register(username);
+        }
+        logger.info("Initiating {} connection(s) ...", poolSize);
+        for (int i = connections.size(); i < poolSize; i++) {
+            connections.add(new CcsConnection(this, nextConnectionId.getAndIncrement()));
+        }
+        for (CcsConnection connection : connections) {
+            connection.connect();
+        }
     }
 
     /**
      * Sends all the queued pending messages
      */
-    private void sendQueuedPendingMessages(Map<String, Message> pendingMessagesToResend) {
+    void sendQueuedPendingMessages() {
         logger.info("Sending queued pending messages through the new connection.");
-        logger.info("Pending messages size: {}", pendingMessages.size());
-        final Map<String, Message> filtered = pendingMessagesToResend.entrySet().stream()
-                .filter(entry -> entry.getValue() != null).sorted(compareTimestampsAscending())
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
-        logger.info("Filtered pending messages size: {}", filtered.size());
-        filtered.entrySet().stream().forEach(entry -> {
-            final String messageId = entry.getKey();
-            final Message pendingMessage = entry.getValue();
-            pendingMessages.remove(messageId);
-            sendDownstreamMessage(messageId, pendingMessage.getJsonRequest());
-        });
-    }
-
-    /**
-     * Sends all the queued sync messages that occurred before 5 seconds (1000 ms) ago. With this we try to send those
-     * lost messages that we have not received ack nor nack.
-     */
-    private void sendQueuedSyncMessages(Map<String, Message> syncMessagesToResend) {
-        logger.info("Sending queued sync messages ...");
-        logger.info("Sync messages size: {}", syncMessages.size());
-        final Map<String, Message> filtered = syncMessagesToResend.entrySet().stream().filter(isOldSyncMessageQueued())
-                .sorted(compareTimestampsAscending())
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
-        logger.info("Filtered sync messages size: {}", filtered.size());
-        filtered.entrySet().stream().forEach(entry -> {
-            final String messageId = entry.getKey();
-            final Message syncMessage = entry.getValue();
-            removeMessageFromSyncMessages(messageId);
-            sendDownstreamMessage(messageId, syncMessage.getJsonRequest());
+        logger.info("Pending messages size: {} (spilled: {})", pendingMessages.size(),
+                pendingMessages.getSpilledCount());
+        // the high priority messages are resent first, then the oldest ones. The spilled ones are read back one by one.
+        // They were already accepted, so they are queued when the window is full instead of blocking this thread or
+        // being rejected after leaving the store.
+        pendingMessages.idsInSendOrder().forEach(messageId -> {
+            // another connection may have resent it already
+            pendingMessages.remove(messageId).ifPresent(pendingMessage -> redispatchDownstreamMessage(messageId,
+                    pendingMessage.getJsonRequest(), pendingMessage.getPriority()));
         });
-    }
-
-    private Predicate<Entry<String, Message>> isOldSyncMessageQueued() {
-        return entry -> entry.getValue() != null
-                && entry.getValue().getTimestamp() < Util.getCurrentTimeMillis() - 5000;
-    }
-
-    private Comparator<Entry<String, Message>> compareTimestampsAscending() {
-        return (e1, e2) -> e1.getValue().getTimestamp().compareTo(e2.getValue().getTimestamp());
+        pendingCollapseGroups.values().removeIf(messageId -> !pendingMessages.containsKey(messageId));
     }
 
     /**
-     * Handle incoming messages
+     * Handle incoming messages received by one of the pooled connections
      */
-    @Override
-    public void processStanza(Stanza packet) {
-        logger.info("Processing packet in thread {} - {}", Thread.currentThread().getName(),
-                Thread.currentThread().getId());
-        logger.info("Received: {}", packet.toXML(null));
+    public void processStanza(CcsConnection connection, Stanza packet) {
+        if (trafficLogger.shouldLog()) {
+            logger.info("Processing packet in thread {} - {}", Thread.currentThread().getName(),
+                    Thread.currentThread().getId());
+            logger.info("Received: {}", packet.toXML(null));
+        }
         final FcmPacketExtension fcmPacket = (FcmPacketExtension) packet.getExtension(Util.FCM_NAMESPACE);
         final String json = fcmPacket.getJson();
-        Optional<Map<String, Object>> jsonMapObject = Optional.ofNullable(MessageMapper.toMapFromJsonString(json));
-        if (!jsonMapObject.isPresent()) {
+        final Optional<CcsInPacket> inPacketObj = Optional.ofNullable(CcsPacketDecoder.decode(json));
+        if (!inPacketObj.isPresent()) {
             logger.info("Error parsing Packet JSON to JSON String: {}", json);
             return;
         }
-        final Map<String, Object> jsonMap = jsonMapObject.get();
-        final Optional<Object> messageTypeObj = Optional.ofNullable(jsonMap.get("message_type"));
+        final CcsInPacket inPacket = inPacketObj.get();
 
-        if (!messageTypeObj.isPresent()) {
+        if (inPacket instanceof CcsAckMessage) {
+            handleAckReceipt(connection, (CcsAckMessage) inPacket);
+        } else if (inPacket instanceof CcsNackMessage) {
+            handleNackReceipt(connection, (CcsNackMessage) inPacket);
+        } else if (inPacket instanceof CcsInMessage) {
             // Normal upstream message from a device client
-            CcsInMessage inMessage = MessageMapper.ccsInMessageFrom(jsonMap);
-            handleUpstreamMessage(inMessage);
-            return;
+            handleUpstreamMessage(connection, (CcsInMessage) inPacket);
+        } else if (inPacket instanceof CcsReceiptMessage) {
+            handleDeliveryReceipt(connection, (CcsReceiptMessage) inPacket);
+        } else if (inPacket instanceof CcsControlMessage) {
+            handleControlMessage(connection, (CcsControlMessage) inPacket);
         }
-
-        final String messageType = messageTypeObj.get().toString();
-        switch (messageType) {
-            case "ack":
-                handleAckReceipt(jsonMap);
-                break;
-            case "nack":
-                handleNackReceipt(jsonMap);
-                break;
-            case "receipt":
-                // TODO: handle the delivery receipt when a device confirms that it received a particular message.
-                break;
-            case "control":
-                handleControlMessage(jsonMap);
-                break;
-            default:
-                logger.info("Received unknown FCM message type: {}", messageType);
-        }
-
     }
 
     /**
      * Handles an upstream message from a device client through FCM
      */
-    private void handleUpstreamMessage(CcsInMessage inMessage) {
+    private void handleUpstreamMessage(CcsConnection connection, CcsInMessage inMessage) {
         // The custom 'action' payload attribute defines what the message action is about.
         final Optional<String> actionObj =
                 Optional.ofNullable(inMessage.getDataPayload().get(Util.PAYLOAD_ATTRIBUTE_ACTION));
+        metrics.upstream.increment();
+        metrics.upstreamByAction(actionObj.orElse(null)).increment();
         if (!actionObj.isPresent()) {
             throw new IllegalStateException("Action must not be null! Options: 'ECHO', 'MESSAGE'");
         }
         final String action = actionObj.get();
 
-        // 1. send ACK to FCM
+        // 1. send ACK to FCM through the connection that received the message
         final String ackJsonRequest = MessageMapper.createJsonAck(inMessage.getFrom(), inMessage.getMessageId());
-        sendAck(ackJsonRequest);
+        connection.sendAck(ackJsonRequest);
 
-        // 2. process and send message
+        // 2. drop the messages that FCM delivered again (they were acked again above, as our first ack may be lost)
+        if (!duplicateFilter.firstSeen(inMessage.getFrom(), inMessage.getMessageId())) {
+            metrics.upstreamDuplicates.increment();
+            if (trafficLogger.shouldLog()) {
+                logger.info("Duplicate upstream message dropped: {}", inMessage.getMessageId());
+            }
+            return;
+        }
+
+        // 3. process and send message in the upstream pool (in order per device), off the stanza thread
+        upstreamExecutor.execute(inMessage.getFrom(), () -> processUpstreamMessage(action, inMessage));
+    }
+
+    /**
+     * Runs the action of an upstream message
+     */
+    private void processUpstreamMessage(String action, CcsInMessage inMessage) {
         if (action.equals(Util.BACKEND_ACTION_ECHO)) { // send a message to the sender (user itself)
             final String messageId = Util.getUniqueMessageId();
             final String to = inMessage.getFrom();
 
             final CcsOutMessage outMessage = new CcsOutMessage(to, messageId, inMessage.getDataPayload());
             final String jsonRequest = MessageMapper.toJsonString(outMessage);
-            sendDownstreamMessage(messageId, jsonRequest);
+            sendDownstreamMessage(messageId, jsonRequest, MessagePriority.of(outMessage.getPriority()));
         } else if (action.equals(Util.BACKEND_ACTION_MESSAGE)) { // send a message to the recipient
             this.handlePacketRecieved(inMessage);
         }
     }
 
+    /**
+     * Handles a delivery receipt: it is acknowledged like an upstream message (otherwise FCM sends it again) and
+     * matched to its downstream message to record the delivery latencies
+     */
+    private void handleDeliveryReceipt(CcsConnection connection, CcsReceiptMessage receipt) {
+        metrics.receipts.increment();
+        connection.sendAck(MessageMapper.createJsonAck(receipt.getFrom(), receipt.getMessageId()));
+        final DeliveryEvent event = deliveryTracker.delivered(receipt);
+        if (event.isTracked()) {
+            metrics.sendToDelivery.record(event.getSendToDeliveryMillis());
+            if (event.getSendToAckMillis() >= 0) {
+                metrics.sendToAck.record(event.getSendToAckMillis());
+                metrics.ackToDelivery.record(event.getAckToDeliveryMillis());
+            }
+        } else {
+            metrics.untrackedReceipts.increment();
+        }
+        if (deliveryListener != null) {
+            deliveryListener.onDelivery(event);
+        }
+    }
+
     /**
      * Handles an ACK message from FCM
      */
-    private void handleAckReceipt(Map<String, Object> jsonMap) {
-        removeMessageFromSyncMessages(jsonMap);
+    private void handleAckReceipt(CcsConnection connection, CcsAckMessage ack) {
+        final String messageId = ack.getMessageId();
+        removeMessageFromSyncMessages(connection, messageId);
+        metrics.acked.increment();
+        if (messageId != null) {
+            deliveryTracker.acked(messageId);
+            serverErrorBackOffs.remove(messageId);
+            throttleBackOffs.remove(messageId);
+        }
+        if (journal != null && messageId != null) {
+            journal.acked(messageId);
+        }
+        completeSendResult(messageId, SendResult.ack(messageId));
     }
 
     /**
      * Handles a NACK message from FCM
      */
-    private void handleNackReceipt(Map<String, Object> jsonMap) {
-        removeMessageFromSyncMessages(jsonMap);
+    private void handleNackReceipt(CcsConnection connection, CcsNackMessage nack) {
+        final String messageId = nack.getMessageId();
+        metrics.nackedByError(nack.getError()).increment();
+        if ("CONNECTION_DRAINING".equals(nack.getError())) {
+            // the message was not processed: it is sent again through another connection
+            logger.info("Connection draining from Nack ...");
+            connection.handleConnectionDraining();
+            if (messageId != null) {
+                connection.redispatchMessage(messageId);
+            }
+            return;
+        }
+        if ("DEVICE_MESSAGE_RATE_EXCEEDED".equals(nack.getError())
+                || "TOPICS_MESSAGE_RATE_EXCEEDED".equals(nack.getError())) {
+            // the recipient is over its FCM rate limit: its bucket is tightened and the message is sent again later, or
+            // dead lettered after its last retry
+            rateLimiter.throttled(nack.getFrom());
+            if (messageId != null) {
+                final Optional<Message> message = connection.takeMessage(messageId);
+                if (message.isPresent() && retryThrottled(message.get(), nack.getFrom())) {
+                    return;
+                }
+                message.ifPresent(m -> deadLetter(m, nack));
+            }
+        }
+        if (isServerError(nack.getError()) && messageId != null) {
+            // FCM did not process the message: it is sent again later, or dead lettered after its last retry
+            final Optional<Message> message = connection.takeMessage(messageId);
+            if (message.isPresent() && retryServerError(message.get())) {
+                return;
+            }
+            message.ifPresent(m -> deadLetter(m, nack));
+        }
+        removeMessageFromSyncMessages(connection, messageId);
+        metrics.nacked.increment();
+        if (messageId != null) {
+            deliveryTracker.removed(messageId);
+            serverErrorBackOffs.remove(messageId);
+            throttleBackOffs.remove(messageId);
+        }
+        if (journal != null && messageId != null) {
+            journal.nacked(messageId);
+        }
+        completeSendResult(messageId, SendResult.nack(messageId, nack.getError(), nack.getErrorDescription()));
+        if ("BAD_REGISTRATION".equals(nack.getError()) || "DEVICE_UNREGISTERED".equals(nack.getError())) {
+            invalidateToken(nack.getFrom(), nack.getError());
+        }
 
-        Optional<String> errorCodeObj = Optional.ofNullable((String) jsonMap.get("error"));
+        Optional<String> errorCodeObj = Optional.ofNullable(nack.getError());
         if (!errorCodeObj.isPresent()) {
             logger.error("Received null FCM Error Code.");
             return;
@@ -302,53 +455,262 @@ public class CcsClient implements StanzaListener, ReconnectionListener, Connecti
                 || errorCode.equals("DEVICE_UNREGISTERED") || errorCode.equals("BAD_ACK")
                 || errorCode.equals("TOPICS_MESSAGE_RATE_EXCEEDED")
                 || errorCode.equals("DEVICE_MESSAGE_RATE_EXCEEDED")) {
-            logger.info("Device error: {} -> {}", jsonMap.get("error"), jsonMap.get("error_description"));
+            logger.info("Device error: {} -> {}", nack.getError(), nack.getErrorDescription());
         } else if (errorCode.equals("SERVICE_UNAVAILABLE") || errorCode.equals("INTERNAL_SERVER_ERROR")) {
-            logger.info("Server error: {} -> {}", jsonMap.get("error"), jsonMap.get("error_description"));
-        } else if (errorCode.equals("CONNECTION_DRAINING")) {
-            logger.info("Connection draining from Nack ...");
-            handleConnectionDraining();
+            logger.info("Server error: {} -> {}", nack.getError(), nack.getErrorDescription());
         } else {
             logger.info("Received unknown FCM Error Code: {}", errorCode);
         }
     }
 
+    private static boolean isServerError(String errorCode) {
+        return "SERVICE_UNAVAILABLE".equals(errorCode) || "INTERNAL_SERVER_ERROR".equals(errorCode);
+    }
+
+    /**
+     * Schedules the next try of a message nacked because its recipient is over its FCM rate, after both its back off
+     * and the wait of the recipient's bucket
+     *
+     * @return false if the message has no retries left
+     */
+    private boolean retryThrottled(Message message, String recipient) {
+        final String messageId = message.getMessageId();
+        final BackOffStrategy backoff = throttleBackOffs.computeIfAbsent(messageId,
+                id -> new BackOffStrategy(throttleRetries + 1, throttleRetryDelay));
+        final long delay = backoff.nextDelay();
+        if (delay < 0) {
+            throttleBackOffs.remove(messageId);
+            return false;
+        }
+        metrics.throttled.increment();
+        dispatchDownstreamMessageLater(messageId, message.getJsonRequest(), message.getPriority(),
+                Math.max(delay, rateLimiter.reserve(recipient)));
+        return true;
+    }
+
+    /**
+     * Schedules the next try of a message nacked with a server error, with the jittered exponential delay of its back
+     * off. The retries of all the messages are capped by a global rate, so they do not amplify an FCM incident: over
+     * the rate, a retry also waits for its token instead of being dropped.
+     *
+     * @return false if the message has no retries left
+     */
+    private boolean retryServerError(Message message) {
+        final String messageId = message.getMessageId();
+        final BackOffStrategy backoff = serverErrorBackOffs.computeIfAbsent(messageId,
+                id -> new BackOffStrategy(serverErrorRetries + 1, serverErrorRetryDelay));
+        final long delay = backoff.nextDelay();
+        if (delay < 0) {
+            serverErrorBackOffs.remove(messageId);
+            return false;
+        }
+        metrics.serverErrorRetries.increment();
+        final long rateDelay = serverErrorRetryRate.reserve();
+        if (rateDelay > 0) {
+            metrics.retriesDelayed.increment();
+        }
+        // the jitter spreads the retries of the messages nacked together
+        final long jitter = ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        dispatchDownstreamMessageLater(messageId, message.getJsonRequest(), message.getPriority(),
+                delay + jitter + rateDelay);
+        return true;
+    }
+
+    private void deadLetter(Message message, CcsNackMessage nack) {
+        logger.info("Dead lettering the message {} after the error {}", message.getMessageId(), nack.getError());
+        metrics.deadLettered.increment();
+        if (deadLetterSink != null) {
+            deadLetterSink.onDeadLetter(message, nack.getError(), nack.getErrorDescription());
+        }
+    }
+
+    /**
+     * Records a dead registration token, so the next messages to it are rejected before they are sent
+     */
+    private void invalidateToken(String token, String errorCode) {
+        if (!deadTokenFilter.add(token)) {
+            return; // already known (e.g. several messages in flight to the same token)
+        }
+        if (tokenInvalidationListener != null) {
+            tokenInvalidationListener.onTokenInvalidated(token, errorCode);
+        }
+    }
+
     /**
      * Handles a Control message from FCM
      */
-    private void handleControlMessage(Map<String, Object> jsonMap) {
-        final String controlType = (String) jsonMap.get("control_type");
+    private void handleControlMessage(CcsConnection connection, CcsControlMessage control) {
+        final String controlType = control.getControlType();
 
-        if (controlType.equals("CONNECTION_DRAINING")) {
-            handleConnectionDraining();
+        if ("CONNECTION_DRAINING".equals(controlType)) {
+            connection.handleConnectionDraining();
         } else {
             logger.info("Received unknown FCM Control message: {}", controlType);
         }
     }
 
-    private void handleConnectionDraining() {
-        logger.info("FCM Connection is draining!");
-        isConnectionDraining = true;
+    /**
+     * Opens a replacement of a draining connection right away (make before break), so the new messages do not wait for
+     * FCM to close the draining one. The replacement joins the pool and gets the pending messages once authenticated.
+     */
+    void replaceConnection(CcsConnection draining) {
+        final CcsConnection replacement = new CcsConnection(this, nextConnectionId.getAndIncrement());
+        logger.info("Opening the connection {} to replace the draining connection {}", replacement.getConnectionId(),
+                draining.getConnectionId());
+        metrics.reconnects.increment();
+        connections.add(replacement);
+        retryScheduler.execute(() -> {
+            try {
+                replacement.connect();
+                return true;
+            } catch (XMPPException | SmackException | IOException | InterruptedException | KeyManagementException
+                    | NoSuchAlgorithmException e) {
+                logger.info("The replacement connection {} could not connect. Error: {}",
+                        replacement.getConnectionId(), e.getMessage());
+                replacement.disconnectAll();
+                return false;
+            }
+        }, new BackOffStrategy(5, 1000), () -> {
+            logger.error("The replacement connection {} could not connect after the connection draining message.",
+                    replacement.getConnectionId());
+            connections.remove(replacement);
+        }, connectionExecutor);
     }
 
-    private void removeMessageFromSyncMessages(Map<String, Object> jsonMap) {
-        final Optional<String> messageIdObj = Optional.ofNullable((String) jsonMap.get("message_id"));
-        if (messageIdObj.isPresent()) {
-            removeMessageFromSyncMessages(messageIdObj.get());
+    /**
+     * Removes a drained connection from the pool once FCM closed it
+     */
+    void retireConnection(CcsConnection connection) {
+        if (connections.remove(connection)) {
+            connection.retire();
         }
     }
 
-    private void putMessageToSyncMessages(String messageId, String jsonRequest) {
-        syncMessages.put(messageId, Message.from(jsonRequest));
+    private void removeMessageFromSyncMessages(CcsConnection connection, String messageId) {
+        if (messageId != null) {
+            connection.removeMessageFromSyncMessages(messageId);
+        }
+    }
+
+    private void completeSendResult(String messageId, SendResult result) {
+        if (messageId == null) {
+            return;
+        }
+        final CompletableFuture<SendResult> future = sendResults.remove(messageId);
+        if (future != null) {
+            future.complete(result);
+        }
     }
 
     public void removeMessageFromSyncMessages(String messageId) {
-        syncMessages.remove(messageId);
+        for (CcsConnection connection : connections) {
+            if (connection.removeMessageFromSyncMessages(messageId)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called when a connection gave up waiting for the ack or nack of a message
+     */
+    void expireMessage(String messageId) {
+        metrics.expired.increment();
+        deliveryTracker.removed(messageId);
+        if (journal != null) {
+            journal.nacked(messageId);
+        }
+        final CompletableFuture<SendResult> future = sendResults.remove(messageId);
+        if (future != null) {
+            future.completeExceptionally(new TimeoutException("No ack nor nack received for the message " + messageId
+                    + " after " + (maxAckTimeouts + 1) + " attempts"));
+        }
+    }
+
+    void addPendingMessage(String messageId, String jsonRequest, MessagePriority priority) {
+        addPendingMessage(Message.from(messageId, jsonRequest, priority));
+    }
+
+    /**
+     * Queues a message until a connection is available. A pending message with the same recipient and collapse key is
+     * superseded by it: FCM would only keep the latest one on the device anyway, so the older one is not sent.
+     */
+    private void addPendingMessage(Message message) {
+        final String messageId = message.getMessageId();
+        pendingMessages.put(message);
+        MessageMapper.collapseGroupOf(message.getJsonRequest()).ifPresent(group -> {
+            final String supersededId = pendingCollapseGroups.put(group, messageId);
+            if (supersededId != null && !supersededId.equals(messageId) && pendingMessages.discard(supersededId)) {
+                collapseMessage(supersededId, messageId);
+            }
+        });
+    }
+
+    /**
+     * Drops a pending message superseded by a newer one with the same collapse key. Its asynchronous send is completed
+     * with a NACK with the COLLAPSED error code.
+     */
+    private void collapseMessage(String messageId, String supersedingId) {
+        if (trafficLogger.shouldLog()) {
+            logger.info("Pending message {} collapsed by {}", messageId, supersedingId);
+        }
+        metrics.collapsed.increment();
+        deliveryTracker.removed(messageId);
+        if (journal != null) {
+            journal.nacked(messageId);
+        }
+        completeSendResult(messageId, SendResult.nack(messageId, Util.ERROR_COLLAPSED,
+                "Superseded by the message " + supersedingId + " with the same collapse key"));
     }
 
-    private void onUserAuthentication() {
-        isConnectionDraining = false;
-        sendQueuedMessages();
+    /**
+     * Picks the connection that will carry a downstream message according to the dispatch strategy
+     */
+    private Optional<CcsConnection> selectConnection(String messageId, String jsonRequest) {
+        if (connections.isEmpty()) {
+            return Optional.empty();
+        }
+        if (dispatchStrategy == DispatchStrategy.HASHED) {
+            return selectConnectionByRecipient(messageId, jsonRequest);
+        }
+        CcsConnection selected = null;
+        for (CcsConnection connection : connections) {
+            if (connection.isAvailable() && (selected == null || connection.getLoad() < selected.getLoad())) {
+                selected = connection;
+            }
+        }
+        return Optional.ofNullable(selected);
+    }
+
+    /**
+     * Rendezvous hashing of the recipient: every available connection gets a score from the recipient and its
+     * connection id, and the highest one wins. The messages to a recipient stay on the same connection, and when a
+     * connection joins or leaves the pool only the recipients it wins are moved.
+     */
+    private Optional<CcsConnection> selectConnectionByRecipient(String messageId, String jsonRequest) {
+        final String recipient = MessageMapper.recipientOf(jsonRequest);
+        final long recipientHash = mix((recipient != null ? recipient : messageId).hashCode());
+        CcsConnection selected = null;
+        long selectedScore = 0;
+        for (CcsConnection connection : connections) {
+            if (!connection.isAvailable()) {
+                continue;
+            }
+            final long score = mix(recipientHash ^ connection.getConnectionId());
+            if (selected == null || Long.compareUnsigned(score, selectedScore) > 0) {
+                selected = connection;
+                selectedScore = score;
+            }
+        }
+        return Optional.ofNullable(selected);
+    }
+
+    /**
+     * 64-bit finalizer of SplitMix64, so close inputs get unrelated scores
+     */
+    private static long mix(long value) {
+        long hash = (value + 0x9e3779b97f4a7c15L) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
     }
 
     /**
@@ -363,202 +725,726 @@ public class CcsClient implements StanzaListener, ReconnectionListener, Connecti
      */
 
     /**
-     * Note: This method is only called if {@link ReconnectionManager#isAutomaticReconnectEnabled()} returns true
+     * Called when a custom packet has been received by the server. By default this method just resends the packet.
      */
-    @Override
-    public void reconnectionFailed(Exception e) {
-        logger.info("Reconnection failed! Error: {}", e.getMessage());
+    private void handlePacketRecieved(CcsInMessage inMessage) {
+        final String recipient = inMessage.getDataPayload().get(Util.PAYLOAD_ATTRIBUTE_RECIPIENT);
+        final List<String> tokens = resolveTokens(recipient);
+        if (tokens.isEmpty()) {
+            metrics.unresolvedRecipients.increment();
+            logger.info("There is no registration token for the recipient: {}", recipient);
+            return;
+        }
+        // a message per device of the recipient
+        for (String to : tokens) {
+            final String messageId = Util.getUniqueMessageId();
+            // TODO: handle the data payload sent to the client device. Here, I just resend the incoming one.
+            final CcsOutMessage outMessage = new CcsOutMessage(to, messageId, inMessage.getDataPayload());
+            final String jsonRequest = MessageMapper.toJsonString(outMessage);
+            sendDownstreamMessage(messageId, jsonRequest, MessagePriority.of(outMessage.getPriority()));
+        }
     }
 
     /**
-     * Note: This method is only called if {@link ReconnectionManager#isAutomaticReconnectEnabled()} returns true
+     * @return the registration tokens of the recipient user, or the recipient itself (a registration token) if there
+     *         is no token resolver
      */
-    @Override
-    public void reconnectingIn(int seconds) {
-        logger.info("Reconnecting in {} ...", seconds);
+    private List<String> resolveTokens(String recipient) {
+        if (tokenResolver == null) {
+            return recipient != null ? Collections.singletonList(recipient) : Collections.emptyList();
+        }
+        try {
+            return tokenResolver.resolve(recipient);
+        } catch (RuntimeException e) {
+            logger.error("Error resolving the registration tokens of {}. Error: {}", recipient, e.getMessage());
+            return Collections.emptyList();
+        }
     }
 
-    @Override
-    public void connectionClosedOnError(Exception e) {
-        logger.info("Connection closed on error.");
+    /**
+     * Sends a downstream message to FCM through one of the available pooled connections. If there is no available
+     * connection (e.g. all of them are draining), the message is queued as pending until a connection is authenticated.
+     * If the flow control window of the connection is full, the message is blocked, queued or rejected according to the
+     * {@link FlowControlMode}.
+     */
+    public void sendDownstreamMessage(String messageId, String jsonRequest) {
+        sendDownstreamMessage(messageId, jsonRequest, MessagePriority.NORMAL);
     }
 
-    @Override
-    public void connectionClosed() {
-        logger.info("Connection closed. The current connectionDraining flag is: {}", isConnectionDraining);
-        if (isConnectionDraining) {
-            reconnect();
+    /**
+     * Sends a downstream message in the lane of the given priority: the high priority messages get the free window
+     * slots first and are resent first after a reconnection.
+     */
+    public void sendDownstreamMessage(String messageId, String jsonRequest, MessagePriority priority) {
+        if (trafficLogger.shouldLog()) {
+            logger.info("Sending downstream message: {}", messageId);
+        }
+        final boolean isDeadTokenCheck = deadTokenFilter.size() > 0;
+        final boolean isRateLimited = rateLimiter.isActive();
+        final String recipient = isDeadTokenCheck || isRateLimited ? MessageMapper.recipientOf(jsonRequest) : null;
+        if (isDeadTokenCheck && deadTokenFilter.isDead(recipient)) {
+            // FCM would nack it with BAD_REGISTRATION or DEVICE_UNREGISTERED: it does not take a window slot
+            metrics.deadTokenRejected.increment();
+            completeSendResult(messageId,
+                    SendResult.nack(messageId, Util.ERROR_DEAD_TOKEN, "The registration token is known to be dead"));
+            return;
+        }
+        // tracked and journaled before the write, so an answer that arrives right after it is matched
+        final boolean isTracked = MessageMapper.isDeliveryReceiptRequested(jsonRequest);
+        if (isTracked) {
+            deliveryTracker.sent(messageId);
+        }
+        if (journal != null) {
+            journal.enqueued(Message.from(messageId, jsonRequest, priority));
+        }
+        final long delay = isRateLimited ? rateLimiter.reserve(recipient) : 0;
+        if (delay > 0) {
+            metrics.sent.increment();
+            metrics.rateLimited.increment();
+            dispatchDownstreamMessageLater(messageId, jsonRequest, priority, delay);
+            return;
+        }
+        try {
+            dispatchDownstreamMessage(messageId, jsonRequest, priority);
+        } catch (IllegalStateException e) {
+            // rejected by a full window (REJECT mode): the message was never sent, so it must not be replayed
+            if (journal != null) {
+                journal.nacked(messageId);
+            }
+            if (isTracked) {
+                deliveryTracker.removed(messageId);
+            }
+            throw e;
         }
+        metrics.sent.increment();
     }
 
-    @Override
-    public void authenticated(XMPPConnection arg0, boolean arg1) {
-        logger.info("User authenticated.");
-        // This is the last step after a connection or reconnection
-        onUserAuthentication();
+    /**
+     * Dispatches an accepted downstream message after the delay, e.g. when its recipient is back under its rate limit.
+     * The message does not take a window slot while it waits. Once due, it is handed to the redispatch thread and
+     * queued if the window is full, so neither the tick thread nor the flow control mode can block or drop it.
+     */
+    private void dispatchDownstreamMessageLater(String messageId, String jsonRequest, MessagePriority priority,
+            long delayInMillis) {
+        rateLimitedCount.incrementAndGet();
+        timingWheel.schedule(() -> redispatchExecutor.execute(() -> {
+            rateLimitedCount.decrementAndGet();
+            redispatchDownstreamMessage(messageId, jsonRequest, priority);
+        }), delayInMillis);
     }
 
-    @Override
-    public void connected(XMPPConnection arg0) {
-        logger.info("Connection established.");
+    /**
+     * Assigns a new downstream message to one of the available pooled connections, applying the flow control mode
+     */
+    void dispatchDownstreamMessage(String messageId, String jsonRequest, MessagePriority priority) {
+        dispatchDownstreamMessage(messageId, jsonRequest, priority, false);
     }
 
-    @Override
-    public void pingFailed() {
-        logger.info("The ping failed, restarting the ping interval again ...");
-        final PingManager pingManager = PingManager.getInstanceFor(xmppConn);
-        pingManager.setPingInterval(100);
+    /**
+     * Assigns a downstream message that is sent again (drained, throttled, retried or pending) to one of the available
+     * pooled connections. It is queued if the window is full, so it never blocks the caller nor is rejected.
+     */
+    void redispatchDownstreamMessage(String messageId, String jsonRequest, MessagePriority priority) {
+        dispatchDownstreamMessage(messageId, jsonRequest, priority, true);
+    }
+
+    private void dispatchDownstreamMessage(String messageId, String jsonRequest, MessagePriority priority,
+            boolean isResend) {
+        final Optional<CcsConnection> connection = selectConnection(messageId, jsonRequest);
+        if (!connection.isPresent()) {
+            logger.info("There is no available connection. Queuing the message as pending: {}", messageId);
+            addPendingMessage(messageId, jsonRequest, priority);
+            if (selectConnection(messageId, jsonRequest).isPresent()) {
+                // a connection was authenticated meanwhile and may have sent the pending messages without this one
+                sendQueuedPendingMessages();
+            }
+            return;
+        }
+        if (isResend) {
+            connection.get().resendDownstreamMessage(messageId, jsonRequest, priority);
+        } else {
+            connection.get().sendDownstreamMessage(messageId, jsonRequest, priority);
+        }
     }
 
     /**
-     * Called when a custom packet has been received by the server. By default this method just resends the packet.
+     * Sends a downstream message to FCM without waiting for the answer. The returned future is completed with the
+     * {@link SendResult} when the matching ACK or NACK arrives, or exceptionally with a {@link TimeoutException} if
+     * there is no answer within the send timeout. The future is completed on the thread that processes the incoming
+     * stanza, so heavy work should be chained with the async variants of {@link CompletableFuture}.
      */
-    private void handlePacketRecieved(CcsInMessage inMessage) {
-        final String messageId = Util.getUniqueMessageId();
-        // TODO: it should be the user id to be retrieved from the data base
-        final String to = inMessage.getDataPayload().get(Util.PAYLOAD_ATTRIBUTE_RECIPIENT);
-
-        // TODO: handle the data payload sent to the client device. Here, I just resend the incoming one.
-        final CcsOutMessage outMessage = new CcsOutMessage(to, messageId, inMessage.getDataPayload());
-        final String jsonRequest = MessageMapper.toJsonString(outMessage);
-        sendDownstreamMessage(messageId, jsonRequest);
+    public CompletableFuture<SendResult> sendAsync(String messageId, String jsonRequest) {
+        return sendAsync(messageId, jsonRequest, MessagePriority.NORMAL);
     }
 
     /**
-     * Sends a downstream message to FCM
+     * Sends a downstream message to FCM in the lane of the given priority without waiting for the answer
      */
-    public void sendDownstreamMessage(String messageId, String jsonRequest) {
-        logger.info("Sending downstream message.");
-        putMessageToSyncMessages(messageId, jsonRequest);
-        if (!isConnectionDraining) {
-            sendDownstreamMessageInternal(messageId, jsonRequest);
+    public CompletableFuture<SendResult> sendAsync(String messageId, String jsonRequest, MessagePriority priority) {
+        final CompletableFuture<SendResult> future = new CompletableFuture<>();
+        sendResults.put(messageId, future);
+        final Timeout timeout = timingWheel.schedule(() -> {
+            if (sendResults.remove(messageId, future)) {
+                future.completeExceptionally(new TimeoutException(
+                        "No ack nor nack received for the message " + messageId + " after " + sendTimeout + " ms"));
+            }
+        }, sendTimeout);
+        future.whenComplete((result, error) -> timeout.cancel());
+        try {
+            sendDownstreamMessage(messageId, jsonRequest, priority);
+        } catch (RuntimeException e) {
+            sendResults.remove(messageId, future);
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
     /**
-     * Sends a downstream message to FCM with back off strategy
+     * Sends a message to multiple recipients (list). Kind of like the old HTTP message with the list of regIds in the
+     * "registration_ids" field.
      */
-    private void sendDownstreamMessageInternal(String messageId, String jsonRequest) {
-        final Stanza request = new FcmPacketExtension(jsonRequest).toPacket();
-        final BackOffStrategy backoff = new BackOffStrategy();
-        while (backoff.shouldRetry()) {
+    public CompletableFuture<BroadcastResult> sendBroadcast(CcsOutMessage outMessage, List<String> recipients) {
+        return sendBroadcast(outMessage, recipients.stream(), null);
+    }
+
+    /**
+     * Sends a message to a stream of recipients. The shared payload is serialized once and every recipient's JSON is
+     * spliced from it. The recipients are consumed in a background thread and fanned out across the pooled connections,
+     * with at most as many unanswered broadcast messages as the windows of all the connections allow.
+     *
+     * @param listener optional listener of the per-recipient results
+     * @return a future completed with the counts when all the recipients are answered, failed or timed out
+     */
+    public CompletableFuture<BroadcastResult> sendBroadcast(CcsOutMessage outMessage, Stream<String> recipients,
+            BroadcastListener listener) {
+        final BroadcastTemplate template = new BroadcastTemplate(outMessage);
+        final MessagePriority priority = MessagePriority.of(outMessage.getPriority());
+        final BroadcastResult result = new BroadcastResult();
+        final CompletableFuture<BroadcastResult> done = new CompletableFuture<>();
+        final Semaphore inFlight = new Semaphore(poolSize * windowCapacity);
+        final AtomicLong outstanding = new AtomicLong(1); // the feeder itself
+        final Runnable onOutstandingDone = () -> {
+            if (outstanding.decrementAndGet() == 0) {
+                done.complete(result);
+            }
+        };
+        broadcastExecutor.execute(() -> {
             try {
-                xmppConn.sendStanza(request);
-                backoff.doNotRetry();
-            } catch (NotConnectedException | InterruptedException e) {
-                logger.info("The packet could not be sent due to a connection problem. Backing off the packet: {}",
-                        request.toXML(null));
-                try {
-                    backoff.errorOccured2();
-                } catch (Exception e2) { // all the attempts failed
-                    removeMessageFromSyncMessages(messageId);
-                    pendingMessages.put(messageId, Message.from(jsonRequest));
+                final Iterator<String> iterator = recipients.iterator();
+                while (iterator.hasNext()) {
+                    final String toRegId = iterator.next();
+                    inFlight.acquire();
+                    outstanding.incrementAndGet();
+                    result.incrementSent();
+                    final String messageId = Util.getUniqueMessageId();
+                    final String jsonRequest = template.toJsonString(toRegId, messageId);
+                    sendAsync(messageId, jsonRequest, priority).whenComplete((sendResult, error) -> {
+                        inFlight.release();
+                        try {
+                            if (error != null) {
+                                result.incrementFailed();
+                                if (listener != null) {
+                                    listener.onFailure(toRegId, error);
+                                }
+                            } else {
+                                result.add(sendResult);
+                                if (listener != null) {
+                                    listener.onResult(toRegId, sendResult);
+                                }
+                            }
+                        } finally {
+                            // a failing listener must not leave the broadcast future uncompleted
+                            onOutstandingDone.run();
+                        }
+                    });
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.info("The broadcast was interrupted. Sent messages: {}", result.getSent());
+            } catch (RuntimeException e) {
+                logger.error("Error reading the broadcast recipients. Error: {}", e.getMessage());
+            } finally {
+                recipients.close();
+                onOutstandingDone.run();
             }
+        });
+        return done;
+    }
+
+    /**
+     * Sets the host of the connection server (FCM CCS by default). It must be called before connecting.
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Sets the port of the connection server (5236 by default). It must be called before connecting.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Enables or disables TLS on the connections (enabled by default). It should only be disabled to connect to a local
+     * server such as the CcsSimulator of the test sources. It must be called before connecting.
+     */
+    public void setTlsEnabled(boolean tlsEnabled) {
+        this.tlsEnabled = tlsEnabled;
+    }
+
+    public boolean isTlsEnabled() {
+        return tlsEnabled;
+    }
+
+    /**
+     * Sets the number of connections opened by {@link #connect()}. It must be called before connecting.
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The pool size must be greater than zero");
         }
+        this.poolSize = poolSize;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setDispatchStrategy(DispatchStrategy dispatchStrategy) {
+        this.dispatchStrategy = dispatchStrategy;
+    }
+
+    public DispatchStrategy getDispatchStrategy() {
+        return dispatchStrategy;
     }
 
     /**
-     * Sends an ACK to FCM with back off strategy
-     *
-     * @param jsonRequest
+     * Sets the maximum number of unacked messages per connection. It must be called before connecting.
      */
-    private void sendAck(String jsonRequest) {
-        logger.info("Sending ack.");
-        final Stanza packet = new FcmPacketExtension(jsonRequest).toPacket();
-        final BackOffStrategy backoff = new BackOffStrategy();
-        while (backoff.shouldRetry()) {
-            try {
-                xmppConn.sendStanza(packet);
-                backoff.doNotRetry();
-            } catch (NotConnectedException | InterruptedException e) {
-                logger.info("The packet could not be sent due to a connection problem. Backing off the packet: {}",
-                        packet.toXML(null));
-                backoff.errorOccured();
-            }
+    public void setWindowCapacity(int windowCapacity) {
+        if (windowCapacity < 1) {
+            throw new IllegalArgumentException("The window capacity must be greater than zero");
         }
+        this.windowCapacity = windowCapacity;
+    }
+
+    public int getWindowCapacity() {
+        return windowCapacity;
     }
 
     /**
-     * Sends a message to multiple recipients (list). Kind of like the old HTTP message with the list of regIds in the
-     * "registration_ids" field.
+     * Sets what happens to a message when the window of its connection is full. It must be called before connecting.
      */
-    public void sendBroadcast(CcsOutMessage outMessage, List<String> recipients) {
-        final Map<String, Object> map = MessageMapper.mapFrom(outMessage);
-        for (String toRegId : recipients) {
-            final String messageId = Util.getUniqueMessageId();
-            map.put("message_id", messageId);
-            map.put("to", toRegId);
-            final String jsonRequest = MessageMapper.toJsonString(map);
-            sendDownstreamMessage(messageId, jsonRequest);
+    public void setFlowControlMode(FlowControlMode flowControlMode) {
+        this.flowControlMode = flowControlMode;
+    }
+
+    public FlowControlMode getFlowControlMode() {
+        return flowControlMode;
+    }
+
+    /**
+     * Sets how many high priority messages get a free window slot in a row while normal ones are waiting for one. It
+     * must be called before connecting.
+     */
+    public void setHighPriorityWeight(int highPriorityWeight) {
+        if (highPriorityWeight < 1) {
+            throw new IllegalArgumentException("The high priority weight must be greater than zero");
         }
+        this.highPriorityWeight = highPriorityWeight;
     }
 
-    private synchronized void reconnect() {
-        logger.info("Initiating reconnection ...");
-        final BackOffStrategy backoff = new BackOffStrategy(5, 1000);
-        while (backoff.shouldRetry()) {
-            try {
-                connect();
-                sendQueuedMessages();
-                backoff.doNotRetry();
-            } catch (XMPPException | SmackException | IOException | InterruptedException | KeyManagementException
-                    | NoSuchAlgorithmException e) {
-                logger.info("The notifier server could not reconnect after the connection draining message.");
-                backoff.errorOccured();
-            }
+    public int getHighPriorityWeight() {
+        return highPriorityWeight;
+    }
+
+    /**
+     * @return the number of window slots taken by unacked messages across all the connections
+     */
+    public int getWindowOccupancy() {
+        return connections.stream().mapToInt(connection -> connection.getWindow().getOccupancy()).sum();
+    }
+
+    /**
+     * @return the number of messages waiting for a window slot across all the connections
+     */
+    public int getWindowQueueDepth() {
+        return connections.stream().mapToInt(connection -> connection.getWindow().getQueueDepth()).sum();
+    }
+
+    /**
+     * @return the number of high priority messages waiting for a window slot across all the connections
+     */
+    public int getWindowHighPriorityQueueDepth() {
+        return connections.stream().mapToInt(connection -> connection.getWindow().getHighPriorityQueueDepth()).sum();
+    }
+
+    /**
+     * Sets the time to wait for the ack or nack of an asynchronous send before completing it with a timeout
+     */
+    public void setSendTimeout(long sendTimeout, TimeUnit unit) {
+        this.sendTimeout = unit.toMillis(sendTimeout);
+    }
+
+    public long getSendTimeout() {
+        return sendTimeout;
+    }
+
+    /**
+     * @return the retry engine with the retry count and delay metrics
+     */
+    public RetryScheduler getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    /**
+     * Sets the time to wait for the ack or nack of a downstream message before resending it
+     */
+    public void setAckTimeout(long ackTimeout, TimeUnit unit) {
+        this.ackTimeout = unit.toMillis(ackTimeout);
+    }
+
+    public long getAckTimeout() {
+        return ackTimeout;
+    }
+
+    /**
+     * Sets the number of ack timeouts (resends) after which a downstream message is expired
+     */
+    public void setMaxAckTimeouts(int maxAckTimeouts) {
+        this.maxAckTimeouts = maxAckTimeouts;
+    }
+
+    public int getMaxAckTimeouts() {
+        return maxAckTimeouts;
+    }
+
+    /**
+     * @return the timing wheel that tracks the ack deadlines, with its pending and expired counts
+     */
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Enables the journal of the downstream messages in the given file. The unanswered messages of the last run are
+     * replayed as pending messages by {@link #connect()}, at least once. The journal is flushed in batches, so a crash
+     * can lose up to one flush interval of events (see {@link MessageJournal}). It must be called before connecting.
+     */
+    public void setJournalPath(Path journalPath) {
+        this.journalPath = journalPath;
+    }
+
+    public Optional<MessageJournal> getJournal() {
+        return Optional.ofNullable(journal);
+    }
+
+    /**
+     * Replaces the registry that records the metrics (by default an in-memory one exposed over JMX), e.g. with an
+     * adapter to your monitoring library. It must be called before connecting.
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+        this.metrics = new CcsMetrics(metricsRegistry, this);
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    CcsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables or disables the JMX MBean of the default metrics registry (enabled by default). It must be called before
+     * connecting.
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * Sets how long and how many of the messages that requested a delivery receipt are tracked to match their
+     * receipts. The receipts that arrive later are still acknowledged and reported, without latencies. It must be
+     * called before connecting.
+     */
+    public void setDeliveryTracking(long ttl, TimeUnit unit, int maxMessages) {
+        this.deliveryTracker = new DeliveryTracker(unit.toMillis(ttl), maxMessages);
+    }
+
+    public DeliveryTracker getDeliveryTracker() {
+        return deliveryTracker;
+    }
+
+    /**
+     * Sets the number of threads that process the upstream messages. The messages of the same device are processed by
+     * the same thread, in order. It must be called before connecting.
+     */
+    public void setUpstreamThreads(int upstreamThreads) {
+        if (upstreamThreads < 1) {
+            throw new IllegalArgumentException("The number of upstream threads must be greater than zero");
         }
+        this.upstreamThreads = upstreamThreads;
     }
 
-    private void sendQueuedMessages() {
-        // copy the snapshots of the two lists and then try to resend them
-        final Map<String, Message> pendingMessagesToResend = new HashMap<>(pendingMessages);
-        final Map<String, Message> syncMessagesToResend = new HashMap<>(syncMessages);
-        sendQueuedPendingMessages(pendingMessagesToResend);
-        sendQueuedSyncMessages(syncMessagesToResend);
+    /**
+     * Sets the maximum number of upstream messages waiting per upstream thread. When it is full, the stanza thread
+     * waits for room. It must be called before connecting.
+     */
+    public void setUpstreamQueueCapacity(int upstreamQueueCapacity) {
+        if (upstreamQueueCapacity < 1) {
+            throw new IllegalArgumentException("The upstream queue capacity must be greater than zero");
+        }
+        this.upstreamQueueCapacity = upstreamQueueCapacity;
+    }
+
+    /**
+     * Sets how long and how many upstream message ids are remembered to drop the messages that FCM delivers again. It
+     * must be called before connecting.
+     */
+    public void setUpstreamDeduplication(long ttl, TimeUnit unit, int maxMessages) {
+        this.duplicateFilter = new DuplicateFilter(unit.toMillis(ttl), maxMessages);
+    }
+
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * @return the number of upstream messages waiting for an upstream thread
+     */
+    public int getUpstreamQueueDepth() {
+        return upstreamExecutor != null ? upstreamExecutor.getQueueDepth() : 0;
+    }
+
+    /**
+     * @return the number of upstream threads processing a message
+     */
+    public int getUpstreamActiveCount() {
+        return upstreamExecutor != null ? upstreamExecutor.getActiveCount() : 0;
+    }
+
+    /**
+     * @return the number of upstream messages that found the queue of their thread full
+     */
+    public long getUpstreamSaturatedCount() {
+        return upstreamExecutor != null ? upstreamExecutor.getSaturatedCount() : 0;
+    }
+
+    /**
+     * Sets the resolver of the registration tokens of the recipient users of the relayed messages (MESSAGE action).
+     * Wrap a slow resolver in a {@link CachingTokenResolver}. Without it, the recipient is the registration token.
+     */
+    public void setTokenResolver(TokenResolver tokenResolver) {
+        this.tokenResolver = tokenResolver;
+    }
+
+    public TokenResolver getTokenResolver() {
+        return tokenResolver;
+    }
+
+    /**
+     * Sets the file where the dead registration tokens are persisted (as hashes) to keep rejecting them after a
+     * restart. It must be called before connecting.
+     */
+    public void setDeadTokenPath(Path deadTokenPath) {
+        this.deadTokenPath = deadTokenPath;
+    }
+
+    public DeadTokenFilter getDeadTokenFilter() {
+        return deadTokenFilter;
+    }
+
+    /**
+     * Sets the per recipient rate limiter, e.g. to change its rates or to limit every recipient. It must be called
+     * before connecting.
+     */
+    public void setRateLimiter(RecipientRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RecipientRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return the number of messages waiting for their recipient to be back under its rate limit
+     */
+    public int getRateLimitedCount() {
+        return rateLimitedCount.get();
+    }
+
+    /**
+     * Sets the listener of the registration tokens that FCM reported as dead
+     */
+    public void setTokenInvalidationListener(TokenInvalidationListener tokenInvalidationListener) {
+        this.tokenInvalidationListener = tokenInvalidationListener;
+    }
+
+    /**
+     * Sets the retries of the messages nacked with SERVICE_UNAVAILABLE or INTERNAL_SERVER_ERROR: the number of retries
+     * of a message, the delay before its first retry (doubled at every retry) and the maximum retries per second of
+     * all the messages (the retries over it are delayed). A message without retries left is nacked and sent to the
+     * {@link DeadLetterSink}.
+     */
+    public void setServerErrorRetries(int retries, long initialDelayInMillis, double maxRetriesPerSecond) {
+        if (retries < 0 || initialDelayInMillis < 1) {
+            throw new IllegalArgumentException("The retries must be positive and the delay greater than zero");
+        }
+        this.serverErrorRetries = retries;
+        this.serverErrorRetryDelay = initialDelayInMillis;
+        this.serverErrorRetryRate = new TokenBucket(maxRetriesPerSecond, (int) Math.max(1, maxRetriesPerSecond));
+    }
+
+    /**
+     * Sets the retries of the messages nacked with DEVICE_MESSAGE_RATE_EXCEEDED or TOPICS_MESSAGE_RATE_EXCEEDED: the
+     * number of retries of a message and the minimum delay before its first retry (doubled at every retry). A message
+     * also waits for its recipient's rate limiter. A message without retries left is nacked and sent to the
+     * {@link DeadLetterSink}.
+     */
+    public void setThrottleRetries(int retries, long initialDelayInMillis) {
+        if (retries < 0 || initialDelayInMillis < 1) {
+            throw new IllegalArgumentException("The retries must be positive and the delay greater than zero");
+        }
+        this.throttleRetries = retries;
+        this.throttleRetryDelay = initialDelayInMillis;
+    }
+
+    /**
+     * Sets the sink of the messages that FCM kept nacking with a server error or a rate exceeded error after all their
+     * retries
+     */
+    public void setDeadLetterSink(DeadLetterSink deadLetterSink) {
+        this.deadLetterSink = deadLetterSink;
+    }
+
+    /**
+     * @return the number of messages nacked with a server error that are being retried
+     */
+    public int getServerErrorRetryingCount() {
+        return serverErrorBackOffs.size();
+    }
+
+    /**
+     * Sets the listener of the delivery receipts
+     */
+    public void setDeliveryListener(DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
+    /**
+     * @return the number of messages waiting for an available connection
+     */
+    public int getPendingCount() {
+        return pendingMessages.size();
+    }
+
+    /**
+     * Sets the file where the JSON of the pending messages is spilled once the pending messages on the heap exceed the
+     * budget (in bytes), so a long outage does not exhaust the heap. It must be called before connecting.
+     */
+    public void setPendingSpill(Path spillPath, long heapBudgetInBytes) {
+        pendingMessages.setSpill(spillPath, heapBudgetInBytes);
+    }
+
+    /**
+     * @return the number of pending messages spilled to the file
+     */
+    public int getPendingSpilledCount() {
+        return pendingMessages.getSpilledCount();
+    }
+
+    /**
+     * @return the approximate heap used by the JSON of the pending messages that are not spilled, in bytes
+     */
+    public long getPendingHeapBytes() {
+        return pendingMessages.getHeapBytes();
+    }
+
+    /**
+     * @return the traffic logging settings (OFF, SAMPLED or FULL), they can be changed at runtime
+     */
+    public TrafficLogger getTrafficLogger() {
+        return trafficLogger;
+    }
+
+    public List<CcsConnection> getConnections() {
+        return connections;
+    }
+
+    String getApiKey() {
+        return apiKey;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    boolean isDebuggable() {
+        return debuggable;
     }
 
     /*** BEGIN: Methods for the Manager ***/
 
     private boolean isConnected() {
-        return xmppConn != null ? xmppConn.isConnected() : false;
+        return connections.stream().anyMatch(CcsConnection::isConnected);
     }
 
     private boolean isAuthenticated() {
-        return xmppConn != null ? xmppConn.isAuthenticated() : false;
+        return connections.stream().anyMatch(CcsConnection::isAuthenticated);
     }
 
     public boolean isAlive() {
-        logger.info("Connection parameters -> isConnected: {}, isAuthenticated: {}", isConnected(), isAuthenticated());
-        return isConnected() && isAuthenticated();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Connection parameters -> isConnected: {}, isAuthenticated: {}", isConnected(),
+                    isAuthenticated());
+        }
+        return connections.stream().anyMatch(CcsConnection::isAlive);
     }
 
+    /**
+     * Disconnects all the connections and stops the threads of the client (scheduler, broadcast feeders, connection
+     * attempts, redispatch and upstream workers). It is terminal: the client cannot connect again.
+     */
     public void disconnectAll() {
         logger.info("Disconnecting all ...");
-        if (xmppConn.isConnected()) {
-            logger.info("Detaching all the listeners for the connection.");
-            PingManager.getInstanceFor(xmppConn).unregisterPingFailedListener(this);
-            ReconnectionManager.getInstanceFor(xmppConn).removeReconnectionListener(this);
-            xmppConn.removeAsyncStanzaListener(this);
-            xmppConn.removeConnectionListener(this);
-            xmppConn.removeStanzaInterceptor(this);
-            xmppConn.removeAllRequestAckPredicates();
-            xmppConn.removeAllStanzaAcknowledgedListeners();
-            xmppConn.removeAllStanzaIdAcknowledgedListeners();
-            xmppConn.removeStanzaSendingListener(this);
-            xmppConn.removeStanzaAcknowledgedListener(this);
-            xmppConn.removeAllRequestAckPredicates();
-            logger.info("Disconnecting the xmpp server from FCM.");
-            xmppConn.disconnect();
+        isShutdown = true;
+        connections.forEach(CcsConnection::disconnectAll);
+        broadcastExecutor.shutdownNow();
+        connectionExecutor.shutdownNow();
+        redispatchExecutor.shutdownNow();
+        if (upstreamExecutor != null) {
+            upstreamExecutor.shutdown();
+        }
+        scheduler.shutdownNow();
+        if (journal != null) {
+            journal.close();
+            journal = null;
         }
+        if (jmxExporter != null) {
+            jmxExporter.unregister();
+            jmxExporter = null;
+        }
+        if (isDeadTokenFilterOpen) {
+            deadTokenFilter.close();
+            isDeadTokenFilterOpen = false;
+        }
+        pendingMessages.close();
     }
 
     public void disconnectGracefully() {
         logger.info("Disconnecting ...");
-        if (xmppConn.isConnected()) {
-            logger.info("Disconnecting the xmpp server from FCM");
-            xmppConn.disconnect(); // this method call the onClosed listener because it have not been detached
-        }
+        connections.forEach(CcsConnection::disconnectGracefully);
     }
 
     /*** END: Methods for the Manager ***/
@@ -0,0 +1,523 @@
+package com.wedevol.xmpp.server;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.ReconnectionListener;
+import org.jivesoftware.smack.ReconnectionManager;
+import org.jivesoftware.smack.SASLAuthentication;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.roster.Roster;
+import org.jivesoftware.smack.sm.predicates.ForEveryStanza;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.jivesoftware.smackx.ping.PingFailedListener;
+import org.jivesoftware.smackx.ping.PingManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.wedevol.xmpp.bean.Message;
+import com.wedevol.xmpp.bean.MessagePriority;
+import com.wedevol.xmpp.util.BackOffStrategy;
+import com.wedevol.xmpp.util.Util;
+
+/**
+ * A single connection to FCM Cloud Connection Server owned by a {@link CcsClient}. Every connection has its own
+ * reconnection, ping and draining lifecycle and keeps track of the downstream messages that were sent through it, so
+ * the acks and nacks that FCM returns on this socket are matched against this connection only.
+ *
+ * @author Charz++
+ */
+public class CcsConnection implements StanzaListener, ReconnectionListener, ConnectionListener, PingFailedListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(CcsConnection.class);
+
+    private final CcsClient client;
+    private final int connectionId;
+    private volatile XMPPTCPConnection xmppConn;
+    private volatile boolean isConnectionDraining = false;
+    private final AtomicBoolean isReplaced = new AtomicBoolean(false);
+
+    // downstream messages sent through this connection to sync with acks and nacks
+    private final Map<String, Message> syncMessages = new ConcurrentHashMap<>();
+
+    // slots for the unacked messages of this connection
+    private final FlowControlWindow window;
+
+    CcsConnection(CcsClient client, int connectionId) {
+        this.client = client;
+        this.connectionId = connectionId;
+        this.window = new FlowControlWindow(client.getWindowCapacity(), client.getFlowControlMode(),
+                client.getHighPriorityWeight());
+    }
+
+    /**
+     * Connects to FCM Cloud Connection Server using the credentials of the owning client
+     */
+    public void connect() throws XMPPException, SmackException, IOException, InterruptedException,
+            NoSuchAlgorithmException, KeyManagementException {
+        logger.info("[conn-{}] Initiating connection ...", connectionId);
+
+        isConnectionDraining = false; // Set connection draining to false when there is a new connection
+
+        // create connection configuration
+        XMPPTCPConnection.setUseStreamManagementResumptionDefault(true);
+        XMPPTCPConnection.setUseStreamManagementDefault(true);
+
+        SmackConfiguration.DEBUG = client.isDebuggable();
+
+        final XMPPTCPConnectionConfiguration.Builder config = XMPPTCPConnectionConfiguration.builder();
+        logger.info("[conn-{}] Connecting to the server {}:{} ...", connectionId, client.getHost(), client.getPort());
+        config.setXmppDomain("FCM XMPP Client Connection Server");
+        config.setHost(client.getHost());
+        config.setPort(client.getPort());
+        config.setSendPresence(false);
+        config.setCompressionEnabled(true);
+        if (client.isTlsEnabled()) {
+            final SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, new SecureRandom());
+            config.setSecurityMode(SecurityMode.ifpossible);
+            config.setSocketFactory(sslContext.getSocketFactory());
+            config.setCustomSSLContext(sslContext);
+        } else {
+            config.setSecurityMode(SecurityMode.disabled);
+        }
+
+        xmppConn = new XMPPTCPConnection(config.build()); // Create the connection
+
+        xmppConn.connect(); // Connect
+
+        // Enable automatic reconnection and add the listener (if not, remove the the listener, the
+        // interface and the override methods)
+        ReconnectionManager.getInstanceFor(xmppConn).enableAutomaticReconnection();
+        ReconnectionManager.getInstanceFor(xmppConn).addReconnectionListener(this);
+
+        // Disable Roster at login (in XMPP the contact list is called a "roster")
+        Roster.getInstanceFor(xmppConn).setRosterLoadedAtLogin(false);
+
+        // Security checks
+        SASLAuthentication.unBlacklistSASLMechanism("PLAIN"); // FCM CCS requires a SASL PLAIN authentication mechanism
+        SASLAuthentication.blacklistSASLMechanism("DIGEST-MD5");
+        logger.info("SASL PLAIN authentication enabled ? {}", SASLAuthentication.isSaslMechanismRegistered("PLAIN"));
+        logger.info("Is compression enabled ? {}", xmppConn.isUsingCompression());
+        logger.info("Is the connection secure ? {}", xmppConn.isSecureConnection());
+
+        // Handle connection errors
+        xmppConn.addConnectionListener(this);
+
+        // Handle incoming packets and reject messages that are not from FCM CCS
+        xmppConn.addAsyncStanzaListener(this, stanza -> stanza.hasExtension(Util.FCM_ELEMENT_NAME, Util.FCM_NAMESPACE));
+
+        // Log the outgoing packets according to the traffic logging mode
+        xmppConn.addStanzaInterceptor(stanza -> {
+            if (client.getTrafficLogger().shouldLog()) {
+                logger.info("Sent: {}", stanza.toXML(null));
+            }
+        }, ForEveryStanza.INSTANCE);
+
+        // Set the ping interval
+        final PingManager pingManager = PingManager.getInstanceFor(xmppConn);
+        pingManager.setPingInterval(100);
+        pingManager.registerPingFailedListener(this);
+
+        xmppConn.login(client.getUsername(), client.getApiKey());
+        logger.info("[conn-{}] User logged in: {}", connectionId, client.getUsername());
+    }
+
+    /**
+     * Handle incoming messages. The owning client processes them and routes the acks and nacks back to this connection.
+     */
+    @Override
+    public void processStanza(Stanza packet) {
+        client.processStanza(this, packet);
+    }
+
+    /**
+     * Stops writing to this connection and asks the client for a replacement (make before break). This connection
+     * keeps receiving the acks and nacks of its in-flight messages until FCM closes it.
+     */
+    void handleConnectionDraining() {
+        isConnectionDraining = true;
+        if (!isReplaced.compareAndSet(false, true)) {
+            return; // already draining: FCM also nacks with CONNECTION_DRAINING the messages written after the drain
+        }
+        logger.info("[conn-{}] FCM Connection is draining!", connectionId);
+        client.getMetrics().drainings.increment();
+        client.replaceConnection(this);
+        redispatchQueuedMessages();
+    }
+
+    /**
+     * Sends the messages waiting for a slot through other connections: they must not be written to a draining one
+     */
+    private void redispatchQueuedMessages() {
+        Message queuedMessage;
+        while ((queuedMessage = window.removeQueued()) != null) {
+            client.redispatchDownstreamMessage(queuedMessage.getMessageId(), queuedMessage.getJsonRequest(),
+                    queuedMessage.getPriority());
+        }
+    }
+
+    /**
+     * Sends a message that FCM did not process (e.g. nacked with CONNECTION_DRAINING) through another connection
+     *
+     * @return true if the message was sent through this connection
+     */
+    boolean redispatchMessage(String messageId) {
+        final Optional<Message> message = takeMessage(messageId);
+        if (!message.isPresent()) {
+            return false;
+        }
+        client.redispatchDownstreamMessage(messageId, message.get().getJsonRequest(), message.get().getPriority());
+        return true;
+    }
+
+    /**
+     * Removes an unanswered message from the sync messages and releases its slot in the flow control window, so the
+     * client can send it again later (e.g. nacked because its recipient is over the FCM rate limit)
+     *
+     * @return the message, if it was sent through this connection
+     */
+    Optional<Message> takeMessage(String messageId) {
+        final Message message = syncMessages.remove(messageId);
+        if (message == null) {
+            return Optional.empty();
+        }
+        cancelAckTimeout(message);
+        window.release();
+        sendQueuedWindowMessages();
+        return Optional.of(message);
+    }
+
+    /**
+     * Called when the client removed this drained connection from the pool: the messages that were not answered
+     * before the close are sent again through the other connections
+     */
+    void retire() {
+        logger.info("[conn-{}] Retiring the drained connection. Unanswered messages: {}", connectionId,
+                syncMessages.size());
+        if (xmppConn != null) {
+            ReconnectionManager.getInstanceFor(xmppConn).disableAutomaticReconnection();
+        }
+        syncMessages.keySet().forEach(this::redispatchMessage);
+        redispatchQueuedMessages();
+        disconnectAll();
+    }
+
+    /**
+     * Removes the answered message from the sync messages, releases its slot in the flow control window and records
+     * its ack latency
+     *
+     * @return true if the message was sent through this connection
+     */
+    boolean removeMessageFromSyncMessages(String messageId) {
+        final Message message = syncMessages.remove(messageId);
+        if (message == null) {
+            return false;
+        }
+        cancelAckTimeout(message);
+        window.release();
+        client.getMetrics().ackLatency.record(Util.getCurrentTimeMillis() - message.getTimestamp());
+        sendQueuedWindowMessages();
+        return true;
+    }
+
+    /**
+     * Writes the messages queued by the flow control window while there are free slots
+     */
+    private void sendQueuedWindowMessages() {
+        if (isConnectionDraining) {
+            return;
+        }
+        Message queuedMessage;
+        while ((queuedMessage = window.pollQueued()) != null) {
+            writeDownstreamMessage(queuedMessage);
+        }
+    }
+
+    private void onUserAuthentication() {
+        isConnectionDraining = false;
+        sendQueuedMessages();
+        sendQueuedWindowMessages();
+    }
+
+    private void sendQueuedMessages() {
+        client.sendQueuedPendingMessages();
+    }
+
+    /**
+     * Note: This method is only called if {@link ReconnectionManager#isAutomaticReconnectEnabled()} returns true
+     */
+    @Override
+    public void reconnectionFailed(Exception e) {
+        logger.info("[conn-{}] Reconnection failed! Error: {}", connectionId, e.getMessage());
+    }
+
+    /**
+     * Note: This method is only called if {@link ReconnectionManager#isAutomaticReconnectEnabled()} returns true
+     */
+    @Override
+    public void reconnectingIn(int seconds) {
+        logger.info("[conn-{}] Reconnecting in {} ...", connectionId, seconds);
+    }
+
+    @Override
+    public void connectionClosedOnError(Exception e) {
+        logger.info("[conn-{}] Connection closed on error.", connectionId);
+        client.getMetrics().connectionErrors.increment();
+        if (isReplaced.get()) {
+            client.retireConnection(this); // the replacement carries the traffic, this one must not reconnect
+        }
+    }
+
+    @Override
+    public void connectionClosed() {
+        logger.info("[conn-{}] Connection closed. The current connectionDraining flag is: {}", connectionId,
+                isConnectionDraining);
+        if (isReplaced.get()) {
+            client.retireConnection(this);
+        }
+    }
+
+    @Override
+    public void authenticated(XMPPConnection arg0, boolean arg1) {
+        logger.info("[conn-{}] User authenticated.", connectionId);
+        client.getMetrics().authentications.increment();
+        // This is the last step after a connection or reconnection
+        onUserAuthentication();
+    }
+
+    @Override
+    public void connected(XMPPConnection arg0) {
+        logger.info("[conn-{}] Connection established.", connectionId);
+    }
+
+    @Override
+    public void pingFailed() {
+        logger.info("[conn-{}] The ping failed, restarting the ping interval again ...", connectionId);
+        final PingManager pingManager = PingManager.getInstanceFor(xmppConn);
+        pingManager.setPingInterval(100);
+    }
+
+    /**
+     * Sends a downstream message through this connection once it gets a slot in the flow control window
+     */
+    void sendDownstreamMessage(String messageId, String jsonRequest, MessagePriority priority) {
+        final Message message = Message.from(messageId, jsonRequest, priority);
+        try {
+            if (!window.acquire(message)) {
+                // queued: a slot could have been released before the message was added to the queue
+                sendQueuedWindowMessages();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("[conn-{}] Interrupted while waiting for a window slot. Queuing the message as pending: {}",
+                    connectionId, messageId);
+            client.addPendingMessage(messageId, jsonRequest, priority);
+            return;
+        }
+        writeDownstreamMessage(message);
+    }
+
+    /**
+     * Sends again a message that the client already accepted. Whatever the flow control mode, it is queued when the
+     * window is full: the calling thread (e.g. the one that processes the incoming stanzas, which delivers the acks
+     * that free the slots) never blocks and the message is never rejected.
+     */
+    void resendDownstreamMessage(String messageId, String jsonRequest, MessagePriority priority) {
+        final Message message = Message.from(messageId, jsonRequest, priority);
+        if (window.acquireOrQueue(message)) {
+            writeDownstreamMessage(message);
+        } else {
+            // a slot could have been released before the message was added to the queue
+            sendQueuedWindowMessages();
+        }
+    }
+
+    private void writeDownstreamMessage(Message message) {
+        writeDownstreamMessage(message, 0);
+    }
+
+    /**
+     * Writes a downstream message that already owns a window slot with back off strategy and tracks its ack deadline.
+     * If all the attempts fail, the slot is released and the message is handed back to the client as a pending message.
+     */
+    private void writeDownstreamMessage(Message message, int ackTimeouts) {
+        final String messageId = message.getMessageId();
+        final String jsonRequest = message.getJsonRequest();
+        message.setTimestamp(Util.getCurrentTimeMillis());
+        final Message previous = syncMessages.put(messageId, message);
+        if (previous != null && previous != message) {
+            cancelAckTimeout(previous);
+            window.release(); // the message was already unacked in this connection and had its own slot
+        }
+        scheduleAckTimeout(message, ackTimeouts);
+        final Stanza request = new FcmPacketExtension(jsonRequest).toPacket();
+        // a retry is skipped if the message was answered or resent in the meantime
+        client.getRetryScheduler().execute(() -> syncMessages.get(messageId) != message || sendStanza(request),
+                new BackOffStrategy(), () -> { // all the attempts failed
+                    if (syncMessages.remove(messageId, message)) {
+                        cancelAckTimeout(message);
+                        window.release();
+                        client.addPendingMessage(messageId, jsonRequest, message.getPriority());
+                    }
+                });
+    }
+
+    private void scheduleAckTimeout(Message message, int ackTimeouts) {
+        message.setAckTimeout(
+                client.getTimingWheel().schedule(() -> onAckTimeout(message, ackTimeouts), client.getAckTimeout()));
+    }
+
+    /**
+     * Cancels the ack deadline of a message that left the sync messages, so it does not stay in the timing wheel
+     */
+    private static void cancelAckTimeout(Message message) {
+        if (message.getAckTimeout() != null) {
+            message.getAckTimeout().cancel();
+        }
+    }
+
+    /**
+     * Called when the ack deadline of a message passed. If FCM did not answer it yet, the message is resent through
+     * this connection, or expired after the maximum number of ack timeouts. While the connection is not available the
+     * deadline is just postponed until it is authenticated again.
+     */
+    private void onAckTimeout(Message message, int ackTimeouts) {
+        final String messageId = message.getMessageId();
+        if (syncMessages.get(messageId) != message) {
+            return; // answered or resent in the meantime
+        }
+        if (!isAvailable()) {
+            scheduleAckTimeout(message, ackTimeouts);
+            return;
+        }
+        if (ackTimeouts >= client.getMaxAckTimeouts()) {
+            if (syncMessages.remove(messageId, message)) {
+                logger.info("[conn-{}] No ack nor nack received for the message {}. Expiring it.", connectionId,
+                        messageId);
+                window.release();
+                client.expireMessage(messageId);
+                sendQueuedWindowMessages();
+            }
+            return;
+        }
+        logger.info("[conn-{}] No ack nor nack received for the message {}. Resending it ...", connectionId, messageId);
+        client.getMetrics().resent.increment();
+        writeDownstreamMessage(message, ackTimeouts + 1);
+    }
+
+    /**
+     * Sends an ACK to FCM through this connection with back off strategy
+     */
+    void sendAck(String jsonRequest) {
+        if (client.getTrafficLogger().shouldLog()) {
+            logger.info("Sending ack: {}", jsonRequest);
+        }
+        final Stanza packet = new FcmPacketExtension(jsonRequest).toPacket();
+        client.getRetryScheduler().execute(() -> sendStanza(packet), new BackOffStrategy(),
+                () -> logger.info("[conn-{}] The ack could not be sent: {}", connectionId, jsonRequest));
+    }
+
+    /**
+     * Tries to write the stanza to the socket once
+     *
+     * @return true if the stanza was written
+     */
+    private boolean sendStanza(Stanza stanza) {
+        try {
+            xmppConn.sendStanza(stanza);
+            return true;
+        } catch (NotConnectedException | InterruptedException e) {
+            logger.info("The packet could not be sent due to a connection problem. Backing off the packet: {}",
+                    stanza.toXML(null));
+            return false;
+        }
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * @return the number of downstream messages sent through this connection that are waiting for an ack or nack
+     */
+    public int getInFlightCount() {
+        return syncMessages.size();
+    }
+
+    /**
+     * @return the number of messages assigned to this connection: the unacked ones plus the ones waiting for a slot
+     */
+    public int getLoad() {
+        return window.getOccupancy() + window.getQueueDepth();
+    }
+
+    public FlowControlWindow getWindow() {
+        return window;
+    }
+
+    public boolean isConnectionDraining() {
+        return isConnectionDraining;
+    }
+
+    /**
+     * @return true if new downstream messages can be written to this connection
+     */
+    public boolean isAvailable() {
+        return !isConnectionDraining && isAlive();
+    }
+
+    public boolean isConnected() {
+        return xmppConn != null ? xmppConn.isConnected() : false;
+    }
+
+    public boolean isAuthenticated() {
+        return xmppConn != null ? xmppConn.isAuthenticated() : false;
+    }
+
+    public boolean isAlive() {
+        return isConnected() && isAuthenticated();
+    }
+
+    void disconnectAll() {
+        if (isConnected()) {
+            logger.info("[conn-{}] Detaching all the listeners for the connection.", connectionId);
+            PingManager.getInstanceFor(xmppConn).unregisterPingFailedListener(this);
+            ReconnectionManager.getInstanceFor(xmppConn).removeReconnectionListener(this);
+            xmppConn.removeAsyncStanzaListener(this);
+            xmppConn.removeConnectionListener(this);
+            xmppConn.removeStanzaInterceptor(this);
+            xmppConn.removeAllRequestAckPredicates();
+            xmppConn.removeAllStanzaAcknowledgedListeners();
+            xmppConn.removeAllStanzaIdAcknowledgedListeners();
+            xmppConn.removeStanzaSendingListener(this);
+            xmppConn.removeStanzaAcknowledgedListener(this);
+            xmppConn.removeAllRequestAckPredicates();
+            logger.info("[conn-{}] Disconnecting the xmpp server from FCM.", connectionId);
+            xmppConn.disconnect();
+        }
+    }
+
+    void disconnectGracefully() {
+        if (isConnected()) {
+            logger.info("[conn-{}] Disconnecting the xmpp server from FCM", connectionId);
+            xmppConn.disconnect(); // this method call the onClosed listener because it have not been detached
+        }
+    }
+
+}
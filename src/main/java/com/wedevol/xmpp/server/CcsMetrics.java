@@ -0,0 +1,137 @@
+package com.wedevol.xmpp.server;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import com.wedevol.xmpp.util.CachingTokenResolver;
+import com.wedevol.xmpp.util.MetricsRegistry;
+import com.wedevol.xmpp.util.MetricsRegistry.Counter;
+import com.wedevol.xmpp.util.MetricsRegistry.Histogram;
+import com.wedevol.xmpp.util.TokenResolver;
+import com.wedevol.xmpp.util.Util;
+
+/**
+ * Metrics recorded by a {@link CcsClient} and its connections. The counters and histograms are resolved once from the
+ * registry, so recording them in the hot path is a plain increment.
+ */
+class CcsMetrics {
+
+    private static final String OTHER = "OTHER";
+
+    private final MetricsRegistry registry;
+
+    final Counter sent;
+    final Counter resent;
+    final Counter acked;
+    final Counter nacked;
+    final Counter expired;
+    final Counter collapsed;
+    final Counter deadTokenRejected;
+    final Counter rateLimited;
+    final Counter throttled;
+    final Counter serverErrorRetries;
+    final Counter retriesDelayed;
+    final Counter deadLettered;
+    final Counter upstream;
+    final Counter upstreamDuplicates;
+    final Counter unresolvedRecipients;
+    final Counter receipts;
+    final Counter untrackedReceipts;
+    final Counter authentications;
+    final Counter reconnects;
+    final Counter drainings;
+    final Counter connectionErrors;
+    final Histogram ackLatency;
+    final Histogram sendToAck;
+    final Histogram sendToDelivery;
+    final Histogram ackToDelivery;
+
+    private final Map<String, Counter> nackedByError = new ConcurrentHashMap<>();
+    private final Map<String, Counter> upstreamByAction = new ConcurrentHashMap<>();
+
+    CcsMetrics(MetricsRegistry registry, CcsClient client) {
+        this.registry = registry;
+        sent = registry.counter("downstream.sent");
+        resent = registry.counter("downstream.resent");
+        acked = registry.counter("downstream.acked");
+        nacked = registry.counter("downstream.nacked");
+        expired = registry.counter("downstream.expired");
+        collapsed = registry.counter("downstream.collapsed");
+        deadTokenRejected = registry.counter("downstream.dead_token_rejected");
+        rateLimited = registry.counter("downstream.rate_limited");
+        throttled = registry.counter("downstream.throttled");
+        serverErrorRetries = registry.counter("downstream.server_error_retries");
+        retriesDelayed = registry.counter("downstream.server_error_retries_delayed");
+        deadLettered = registry.counter("downstream.dead_lettered");
+        upstream = registry.counter("upstream.received");
+        upstreamDuplicates = registry.counter("upstream.duplicates");
+        unresolvedRecipients = registry.counter("upstream.unresolved_recipients");
+        receipts = registry.counter("receipts.received");
+        untrackedReceipts = registry.counter("receipts.untracked");
+        authentications = registry.counter("connections.authentications");
+        reconnects = registry.counter("connections.reconnects");
+        drainings = registry.counter("connections.drainings");
+        connectionErrors = registry.counter("connections.errors");
+        ackLatency = registry.histogram("downstream.ack_latency_ms");
+        sendToAck = registry.histogram("receipts.send_to_ack_ms");
+        sendToDelivery = registry.histogram("receipts.send_to_delivery_ms");
+        ackToDelivery = registry.histogram("receipts.ack_to_delivery_ms");
+
+        registry.gauge("downstream.in_flight",
+                () -> client.getConnections().stream().mapToLong(CcsConnection::getInFlightCount).sum());
+        registry.gauge("downstream.pending", client::getPendingCount);
+        registry.gauge("downstream.pending.spilled", client::getPendingSpilledCount);
+        registry.gauge("downstream.pending.heap_bytes", client::getPendingHeapBytes);
+        registry.gauge("window.occupancy", client::getWindowOccupancy);
+        registry.gauge("window.queued", client::getWindowQueueDepth);
+        registry.gauge("window.queued.high", client::getWindowHighPriorityQueueDepth);
+        registry.gauge("connections.alive",
+                () -> client.getConnections().stream().filter(CcsConnection::isAlive).count());
+        registry.gauge("upstream.queued", client::getUpstreamQueueDepth);
+        registry.gauge("upstream.active", client::getUpstreamActiveCount);
+        registry.gauge("upstream.saturated", client::getUpstreamSaturatedCount);
+        registry.gauge("upstream.dedup.size", () -> client.getDuplicateFilter().size());
+        // hit rate of the duplicate filter, in parts per million
+        registry.gauge("upstream.dedup.hit_rate_ppm",
+                () -> Math.round(client.getDuplicateFilter().getHitRate() * 1000000));
+        registry.gauge("tokens.cache.size", () -> tokenCache(client).map(CachingTokenResolver::size).orElse(0));
+        registry.gauge("tokens.cache.hits",
+                () -> tokenCache(client).map(CachingTokenResolver::getHitCount).orElse(0L));
+        registry.gauge("tokens.cache.misses",
+                () -> tokenCache(client).map(CachingTokenResolver::getMissCount).orElse(0L));
+        registry.gauge("tokens.dead", () -> client.getDeadTokenFilter().size());
+        registry.gauge("downstream.rate_limited.waiting", client::getRateLimitedCount);
+        registry.gauge("downstream.rate_limited.buckets", () -> client.getRateLimiter().size());
+        registry.gauge("downstream.server_error_retrying", client::getServerErrorRetryingCount);
+        registry.gauge("receipts.tracked", () -> client.getDeliveryTracker().size());
+        registry.gauge("receipts.evicted", () -> client.getDeliveryTracker().getEvictedCount());
+        registry.gauge("retries.attempts", () -> client.getRetryScheduler().getAttemptCount());
+        registry.gauge("retries.retries", () -> client.getRetryScheduler().getRetryCount());
+        registry.gauge("retries.exhausted", () -> client.getRetryScheduler().getExhaustedCount());
+    }
+
+    private static Optional<CachingTokenResolver> tokenCache(CcsClient client) {
+        final TokenResolver resolver = client.getTokenResolver();
+        return resolver instanceof CachingTokenResolver ? Optional.of((CachingTokenResolver) resolver)
+                : Optional.empty();
+    }
+
+    /**
+     * @return the nack counter of the FCM error code
+     */
+    Counter nackedByError(String errorCode) {
+        return nackedByError.computeIfAbsent(errorCode != null ? errorCode : OTHER,
+                code -> registry.counter("downstream.nacked." + code));
+    }
+
+    /**
+     * @return the upstream counter of the action (only the known actions, to keep the number of metrics bounded)
+     */
+    Counter upstreamByAction(String action) {
+        final String key = Util.BACKEND_ACTION_ECHO.equals(action) || Util.BACKEND_ACTION_MESSAGE.equals(action)
+                ? action
+                : OTHER;
+        return upstreamByAction.computeIfAbsent(key, name -> registry.counter("upstream.received." + name));
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.wedevol.xmpp.server;
+
+import com.wedevol.xmpp.bean.Message;
+
+/**
+ * Receives the downstream messages that FCM kept nacking with a server error (SERVICE_UNAVAILABLE,
+ * INTERNAL_SERVER_ERROR) or a rate exceeded error (DEVICE_MESSAGE_RATE_EXCEEDED, TOPICS_MESSAGE_RATE_EXCEEDED) after
+ * all their retries, e.g. to store them and send them again once the incident is over. The method is called on the
+ * threads that process the incoming stanzas, so it must not block.
+ */
+public interface DeadLetterSink {
+
+    /**
+     * Called with the original message and the error of its last nack
+     */
+    void onDeadLetter(Message message, String errorCode, String errorDescription);
+
+}
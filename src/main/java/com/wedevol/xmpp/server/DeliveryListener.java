@@ -0,0 +1,16 @@
+package com.wedevol.xmpp.server;
+
+import com.wedevol.xmpp.bean.DeliveryEvent;
+
+/**
+ * Receives the deliveries of the downstream messages that requested a delivery receipt. The method is called on the
+ * threads that process the incoming stanzas, so it must not block.
+ */
+public interface DeliveryListener {
+
+    /**
+     * Called when FCM sent the delivery receipt of a message
+     */
+    void onDelivery(DeliveryEvent event);
+
+}
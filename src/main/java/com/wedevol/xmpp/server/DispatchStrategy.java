@@ -0,0 +1,19 @@
+package com.wedevol.xmpp.server;
+
+/**
+ * Strategy used by the {@link CcsClient} to choose the pooled connection that carries a downstream message
+ */
+public enum DispatchStrategy {
+
+    /**
+     * Picks the available connection with the fewest messages waiting for an ack or nack
+     */
+    LEAST_IN_FLIGHT,
+
+    /**
+     * Hashes the recipient to one of the available connections (rendezvous hashing on the connection ids), so the
+     * messages to a recipient keep their order on a single connection and a change of the pool only moves the
+     * recipients of the connection that joined or left
+     */
+    HASHED
+}
@@ -0,0 +1,22 @@
+package com.wedevol.xmpp.server;
+
+/**
+ * Behavior of a {@link FlowControlWindow} when all its slots are taken by unacked messages
+ */
+public enum FlowControlMode {
+
+    /**
+     * The caller waits until an ack or nack releases a slot
+     */
+    BLOCK,
+
+    /**
+     * The message is queued on the connection and written as soon as a slot is released
+     */
+    QUEUE,
+
+    /**
+     * The message is rejected with an {@link IllegalStateException}
+     */
+    REJECT
+}
@@ -0,0 +1,193 @@
+package com.wedevol.xmpp.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.wedevol.xmpp.bean.Message;
+import com.wedevol.xmpp.bean.MessagePriority;
+
+/**
+ * Flow control window of a connection. FCM CCS allows up to 100 downstream messages without ack or nack per
+ * connection, so every message written to the socket takes a slot that is released when its ack or nack arrives.
+ * New messages that do not get a slot are blocked, queued or rejected according to the {@link FlowControlMode}, while
+ * the messages the client sends again are always queued (see {@link #acquireOrQueue(Message)}).
+ * <p>
+ * The queued messages wait in a lane per {@link MessagePriority}: a high priority message only waits behind other high
+ * priority ones, and the free slots are given to the high lane up to the high priority weight times in a row before a
+ * normal message gets one, so the bulk traffic is slowed down but never starved.
+ */
+public class FlowControlWindow {
+
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final int DEFAULT_HIGH_PRIORITY_WEIGHT = 4;
+
+    private final int capacity;
+    private final FlowControlMode mode;
+    private final int highPriorityWeight;
+    private final Semaphore slots;
+
+    // messages waiting for a slot by lane (QUEUE mode and resent messages)
+    private final Queue<Message> highOverflow = new ConcurrentLinkedQueue<>();
+    private final Queue<Message> normalOverflow = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger highOverflowSize = new AtomicInteger();
+    private final AtomicInteger overflowSize = new AtomicInteger();
+
+    // high priority messages given a slot in a row while normal ones were waiting
+    private final AtomicInteger highInARow = new AtomicInteger();
+
+    public FlowControlWindow(int capacity, FlowControlMode mode) {
+        this(capacity, mode, DEFAULT_HIGH_PRIORITY_WEIGHT);
+    }
+
+    public FlowControlWindow(int capacity, FlowControlMode mode, int highPriorityWeight) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The window capacity must be greater than zero");
+        }
+        if (highPriorityWeight < 1) {
+            throw new IllegalArgumentException("The high priority weight must be greater than zero");
+        }
+        this.capacity = capacity;
+        this.mode = mode;
+        this.highPriorityWeight = highPriorityWeight;
+        this.slots = new Semaphore(capacity);
+    }
+
+    /**
+     * Takes a slot for the message. Depending on the mode, it waits for a slot, queues the message or throws an
+     * {@link IllegalStateException} when the window is full.
+     *
+     * @return true if the caller owns a slot and must write the message, false if the message was queued
+     */
+    public boolean acquire(Message message) throws InterruptedException {
+        switch (mode) {
+            case BLOCK:
+                slots.acquire();
+                return true;
+            case REJECT:
+                if (!slots.tryAcquire()) {
+                    throw new IllegalStateException(
+                            "The flow control window is full: " + capacity + " unacked messages");
+                }
+                return true;
+            default:
+                return acquireOrQueue(message);
+        }
+    }
+
+    /**
+     * Takes a slot for the message or queues it in its lane when the window is full, whatever the mode. The messages
+     * that the client sends again (drained, throttled, retried or pending) go through it, so the internal threads that
+     * resend them never wait for a slot and the messages are never rejected once accepted.
+     *
+     * @return true if the caller owns a slot and must write the message, false if the message was queued
+     */
+    public boolean acquireOrQueue(Message message) {
+        final boolean isHigh = message.getPriority() == MessagePriority.HIGH;
+        // a message does not overtake the ones of its own lane (nor the high ones, if it is a normal one)
+        final boolean isLaneEmpty = isHigh ? highOverflow.isEmpty() : overflowSize.get() == 0;
+        if (isLaneEmpty && slots.tryAcquire()) {
+            return true;
+        }
+        if (isHigh) {
+            highOverflow.add(message);
+            highOverflowSize.incrementAndGet();
+        } else {
+            normalOverflow.add(message);
+        }
+        overflowSize.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Releases a slot after an ack, a nack or a failed write
+     */
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * Takes a slot for the next queued message, if there are both.
+     *
+     * @return the message that owns the new slot, or null if there is no slot or no queued message
+     */
+    public Message pollQueued() {
+        if (overflowSize.get() == 0 || !slots.tryAcquire()) {
+            return null;
+        }
+        final Message message = nextQueued();
+        if (message == null) {
+            slots.release();
+        }
+        return message;
+    }
+
+    /**
+     * Picks the next queued message by weighted round robin between the lanes
+     */
+    private Message nextQueued() {
+        if (highInARow.get() < highPriorityWeight || normalOverflow.isEmpty()) {
+            final Message high = pollLane(highOverflow);
+            if (high != null) {
+                highInARow.incrementAndGet();
+                return high;
+            }
+        }
+        highInARow.set(0);
+        final Message normal = pollLane(normalOverflow);
+        return normal != null ? normal : pollLane(highOverflow);
+    }
+
+    private Message pollLane(Queue<Message> lane) {
+        final Message message = lane.poll();
+        if (message != null) {
+            if (lane == highOverflow) {
+                highOverflowSize.decrementAndGet();
+            }
+            overflowSize.decrementAndGet();
+        }
+        return message;
+    }
+
+    /**
+     * Removes the next queued message without taking a slot, the high priority ones first
+     */
+    public Message removeQueued() {
+        final Message high = pollLane(highOverflow);
+        return high != null ? high : pollLane(normalOverflow);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public FlowControlMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the number of slots taken by unacked messages
+     */
+    public int getOccupancy() {
+        return capacity - slots.availablePermits();
+    }
+
+    public int getHighPriorityWeight() {
+        return highPriorityWeight;
+    }
+
+    /**
+     * @return the number of messages waiting for a slot
+     */
+    public int getQueueDepth() {
+        return overflowSize.get();
+    }
+
+    /**
+     * @return the number of high priority messages waiting for a slot
+     */
+    public int getHighPriorityQueueDepth() {
+        return highOverflowSize.get();
+    }
+
+}
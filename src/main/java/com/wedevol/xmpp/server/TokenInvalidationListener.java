@@ -0,0 +1,14 @@
+package com.wedevol.xmpp.server;
+
+/**
+ * Receives the registration tokens that FCM reported as dead, e.g. to remove them from the database. The method is
+ * called on the threads that process the incoming stanzas, so it must not block.
+ */
+public interface TokenInvalidationListener {
+
+    /**
+     * Called the first time a token is nacked with BAD_REGISTRATION or DEVICE_UNREGISTERED
+     */
+    void onTokenInvalidated(String token, String errorCode);
+
+}
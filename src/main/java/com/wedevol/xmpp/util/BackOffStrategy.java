@@ -1,11 +1,12 @@
 package com.wedevol.xmpp.util;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Util class for back off strategy
+ * Util class for back off strategy. Use {@link #nextDelay()} with a {@link RetryScheduler} to retry without holding a
+ * thread while waiting.
  */
 
 public class BackOffStrategy {
@@ -19,7 +20,6 @@ public class BackOffStrategy {
     private int numberOfTriesLeft;
     private long defaultTimeToWait;
     private long timeToWait;
-    private Random random = new Random();
 
     public BackOffStrategy() {
         this(DEFAULT_RETRIES, DEFAULT_WAIT_TIME_IN_MILLI);
@@ -39,6 +39,21 @@ public class BackOffStrategy {
         return numberOfTriesLeft > 0;
     }
 
+    /**
+     * Registers a failed attempt without waiting
+     *
+     * @return the time to wait in millis before the next try, or -1 if there are no tries left
+     */
+    public long nextDelay() {
+        numberOfTriesLeft--;
+        if (!shouldRetry()) {
+            return -1;
+        }
+        final long delay = timeToWait;
+        increaseTimeToWait();
+        return delay;
+    }
+
     public void errorOccured2() throws Exception {
         numberOfTriesLeft--;
         if (!shouldRetry()) {
@@ -46,9 +61,7 @@ public class BackOffStrategy {
                     + timeToWait + "ms.");
         }
         waitUntilNextTry();
-        timeToWait *= 2;
-        // we add a random time (recommendation from google)
-        timeToWait += random.nextInt(500);
+        increaseTimeToWait();
     }
 
     public void errorOccured() {
@@ -57,9 +70,13 @@ public class BackOffStrategy {
             logger.info("Retry Failed: Total of attempts: {}. Total waited time: {} ms.", numberOfRetries, timeToWait);
         }
         waitUntilNextTry();
+        increaseTimeToWait();
+    }
+
+    private void increaseTimeToWait() {
         timeToWait *= 2;
         // we add a random time (google recommendation)
-        timeToWait += random.nextInt(500);
+        timeToWait += ThreadLocalRandom.current().nextInt(500);
     }
 
     private void waitUntilNextTry() {
@@ -70,6 +87,10 @@ public class BackOffStrategy {
         }
     }
 
+    public int getNumberOfRetries() {
+        return numberOfRetries;
+    }
+
     public long getTimeToWait() {
         return this.timeToWait;
     }
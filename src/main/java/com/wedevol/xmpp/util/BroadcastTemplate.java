@@ -0,0 +1,51 @@
+package com.wedevol.xmpp.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.wedevol.xmpp.bean.CcsOutMessage;
+
+/**
+ * Pre-serialized broadcast message. The shared payload (everything except the recipient and the message id) is
+ * serialized once, and every recipient's JSON is built by splicing its escaped recipient and message id in front of it.
+ *
+ * @author Charz++
+ */
+public class BroadcastTemplate {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    // the rest of the JSON object after the message id, e.g. ,"data":{...},"priority":"high"}
+    private final String body;
+
+    public BroadcastTemplate(CcsOutMessage outMessage) {
+        final StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = factory.createGenerator(writer)) {
+            generator.writeStartObject();
+            CcsOutMessageSerializer.writeBody(generator, outMessage);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("The broadcast message could not be serialized", e);
+        }
+        final String json = writer.toString();
+        this.body = json.length() == 2 ? "}" : "," + json.substring(1);
+    }
+
+    /**
+     * Creates the JSON of the broadcast message for one recipient
+     */
+    public String toJsonString(String to, String messageId) {
+        final JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        final StringBuilder builder = new StringBuilder(body.length() + to.length() + messageId.length() + 32);
+        builder.append("{\"to\":\"");
+        encoder.quoteAsString(to, builder);
+        builder.append("\",\"message_id\":\"");
+        encoder.quoteAsString(messageId, builder);
+        builder.append('"');
+        builder.append(body);
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.wedevol.xmpp.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process cache in front of a slow {@link TokenResolver}:
+ * <ul>
+ * <li>the tokens of a user are kept for the ttl and the unknown users (no token) for the shorter negative ttl</li>
+ * <li>after 3/4 of the ttl, a lookup still gets the cached tokens and they are reloaded in the background
+ * (refresh-ahead), so the frequent users never wait for the resolver</li>
+ * <li>the concurrent misses of the same user share a single load</li>
+ * <li>when the cache is full, the oldest of a small sample of entries is evicted (approximate LRU without a global
+ * list)</li>
+ * </ul>
+ * If a background refresh fails, the cached tokens are kept until they expire.
+ */
+public class CachingTokenResolver implements TokenResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingTokenResolver.class);
+
+    public static final long DEFAULT_TTL_IN_MILLI = 300000; // 5 minutes
+    public static final long DEFAULT_NEGATIVE_TTL_IN_MILLI = 30000;
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final TokenResolver delegate;
+    private final long ttl;
+    private final long refreshAfter;
+    private final long negativeTtl;
+    private final int maxSize;
+    private final Executor executor;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> loads = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+
+    public CachingTokenResolver(TokenResolver delegate) {
+        this(delegate, DEFAULT_TTL_IN_MILLI, DEFAULT_NEGATIVE_TTL_IN_MILLI, DEFAULT_MAX_SIZE,
+                Executors.newFixedThreadPool(4, runnable -> {
+                    final Thread thread = new Thread(runnable, "token-resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    /**
+     * @param executor runs the loads and the background refreshes
+     */
+    public CachingTokenResolver(TokenResolver delegate, long ttlInMillis, long negativeTtlInMillis, int maxSize,
+            Executor executor) {
+        if (ttlInMillis < 1 || negativeTtlInMillis < 0 || maxSize < 1) {
+            throw new IllegalArgumentException("The ttl and the maximum size must be greater than zero");
+        }
+        this.delegate = delegate;
+        this.ttl = ttlInMillis;
+        this.refreshAfter = ttlInMillis * 3 / 4;
+        this.negativeTtl = negativeTtlInMillis;
+        this.maxSize = maxSize;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the tokens of the user, waiting for the resolver only if they are not cached or expired
+     * @throws CompletionException if the resolver failed
+     */
+    @Override
+    public List<String> resolve(String userId) {
+        return resolveAsync(userId).join();
+    }
+
+    /**
+     * @return a future completed with the tokens of the user, already completed if they are cached
+     */
+    public CompletableFuture<List<String>> resolveAsync(String userId) {
+        final long now = Util.getCurrentTimeMillis();
+        final Entry entry = entries.get(userId);
+        if (entry != null && now < entry.expiresAt) {
+            hits.increment();
+            if (!entry.tokens.isEmpty() && now >= entry.loadedAt + refreshAfter
+                    && entry.refreshing.compareAndSet(false, true)) {
+                refreshes.increment();
+                load(userId).whenComplete((loaded, error) -> entry.refreshing.set(false));
+            }
+            return CompletableFuture.completedFuture(entry.tokens);
+        }
+        misses.increment();
+        return load(userId).thenApply(loaded -> loaded.tokens);
+    }
+
+    /**
+     * Loads the tokens of the user in the executor, sharing the load with the concurrent lookups of the same user
+     */
+    private CompletableFuture<Entry> load(String userId) {
+        final CompletableFuture<Entry> newLoad = new CompletableFuture<>();
+        final CompletableFuture<Entry> load = loads.putIfAbsent(userId, newLoad);
+        if (load != null) {
+            return load;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    final List<String> tokens = delegate.resolve(userId);
+                    final Entry loaded = new Entry(tokens != null ? Collections.unmodifiableList(tokens)
+                            : Collections.<String>emptyList());
+                    putIfCurrent(userId, newLoad, loaded);
+                    newLoad.complete(loaded);
+                } catch (RuntimeException e) {
+                    loadFailures.increment();
+                    logger.error("Error resolving the registration tokens of {}. Error: {}", userId, e.getMessage());
+                    newLoad.completeExceptionally(e);
+                } finally {
+                    loads.remove(userId, newLoad);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // otherwise the next lookups of the user would wait forever for a load that never runs
+            loadFailures.increment();
+            logger.error("The load of the registration tokens of {} was rejected. Error: {}", userId, e.getMessage());
+            loads.remove(userId, newLoad);
+            newLoad.completeExceptionally(e);
+        }
+        return newLoad;
+    }
+
+    /**
+     * Caches the loaded tokens, unless the user was invalidated while they were loading (the load is no longer the
+     * current one): they may predate the change that caused the invalidation.
+     */
+    private void putIfCurrent(String userId, CompletableFuture<Entry> load, Entry entry) {
+        entries.compute(userId, (id, cached) -> loads.get(id) == load ? entry : cached);
+        if (entries.size() > maxSize) {
+            evictOne();
+        }
+    }
+
+    /**
+     * Evicts the expired entries of a sample, or the oldest of them if none is expired
+     */
+    private void evictOne() {
+        final long now = Util.getCurrentTimeMillis();
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        Map.Entry<String, Entry> oldest = null;
+        boolean evicted = false;
+        for (int i = 0; i < EVICTION_SAMPLE_SIZE && iterator.hasNext(); i++) {
+            final Map.Entry<String, Entry> candidate = iterator.next();
+            if (now >= candidate.getValue().expiresAt) {
+                iterator.remove();
+                evictions.increment();
+                evicted = true;
+            } else if (oldest == null || candidate.getValue().loadedAt < oldest.getValue().loadedAt) {
+                oldest = candidate;
+            }
+        }
+        if (!evicted && oldest != null && entries.remove(oldest.getKey(), oldest.getValue())) {
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Removes the cached tokens of the user, e.g. when a device is registered or unregistered. A load of the user that
+     * is running does not cache its result, and the next lookup loads the tokens again.
+     */
+    public void invalidate(String userId) {
+        // the load is detached first, so it cannot cache its tokens after the entry is removed
+        loads.remove(userId);
+        entries.remove(userId);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    /**
+     * Cached tokens of a user. An empty list is a negative entry (unknown user).
+     */
+    private class Entry {
+
+        final List<String> tokens;
+        final long loadedAt = Util.getCurrentTimeMillis();
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(List<String> tokens) {
+            this.tokens = tokens;
+            this.expiresAt = loadedAt + (tokens.isEmpty() ? negativeTtl : ttl);
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.wedevol.xmpp.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.wedevol.xmpp.bean.CcsOutMessage;
+
+/**
+ * Serializer of the FCM outgoing messages. It writes the message attributes straight to a per-thread reusable buffer
+ * with a streaming generator, without building an intermediate map. The JSON has the same attributes as
+ * {@link MessageMapper#mapFrom(CcsOutMessage)}.
+ *
+ * @author Charz++
+ */
+public class CcsOutMessageSerializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CcsOutMessageSerializer.class);
+    private static final JsonFactory factory = new JsonFactory();
+    private static final ThreadLocal<StringBuilderWriter> buffers = ThreadLocal.withInitial(StringBuilderWriter::new);
+
+    /**
+     * Creates a JSON from a FCM outgoing message attributes
+     */
+    public static String toJsonString(CcsOutMessage msg) {
+        final StringBuilderWriter buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = factory.createGenerator(buffer)) {
+            write(generator, msg);
+        } catch (IOException e) {
+            logger.error("Error serializing the outgoing message: {}", msg.getMessageId());
+            return null;
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Creates a JSON encoded ACK message for a received upstream message
+     */
+    public static String toJsonAck(String to, String messageId) {
+        final StringBuilderWriter buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = factory.createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeStringField("message_type", "ack");
+            generator.writeStringField("to", to);
+            generator.writeStringField("message_id", messageId);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            logger.error("Error serializing the ack for the message: {}", messageId);
+            return null;
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Writes the attributes of the outgoing message as a JSON object
+     */
+    public static void write(JsonGenerator generator, CcsOutMessage msg) throws IOException {
+        generator.writeStartObject();
+        if (msg.getTo() != null) {
+            generator.writeStringField("to", msg.getTo());
+        }
+        if (msg.getMessageId() != null) {
+            generator.writeStringField("message_id", msg.getMessageId());
+        }
+        writeBody(generator, msg);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes all the attributes of the outgoing message except the recipient and the message id
+     */
+    static void writeBody(JsonGenerator generator, CcsOutMessage msg) throws IOException {
+        if (msg.getDataPayload() != null) {
+            writeStringMap(generator, "data", msg.getDataPayload());
+        }
+        if (msg.getNotificationPayload() != null) {
+            writeStringMap(generator, "notification", msg.getNotificationPayload());
+        }
+        if (msg.getCondition() != null) {
+            generator.writeStringField("condition", msg.getCondition());
+        }
+        if (msg.getCollapseKey() != null) {
+            generator.writeStringField("collapse_key", msg.getCollapseKey());
+        }
+        if (msg.getPriority() != null) {
+            generator.writeStringField("priority", msg.getPriority());
+        }
+        if (msg.isContentAvailable() != null && msg.isContentAvailable()) {
+            generator.writeBooleanField("content_available", true);
+        }
+        if (msg.getTimeToLive() != null) {
+            generator.writeNumberField("time_to_live", msg.getTimeToLive());
+        }
+        if (msg.isDeliveryReceiptRequested() != null && msg.isDeliveryReceiptRequested()) {
+            generator.writeBooleanField("delivery_receipt_requested", true);
+        }
+        if (msg.isDryRun() != null && msg.isDryRun()) {
+            generator.writeBooleanField("dry_run", true);
+        }
+    }
+
+    private static void writeStringMap(JsonGenerator generator, String fieldName, Map<String, String> map)
+            throws IOException {
+        generator.writeObjectFieldStart(fieldName);
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            generator.writeStringField(entry.getKey(), entry.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Unsynchronized writer on a reusable {@link StringBuilder} (the {@link java.io.StringWriter} is synchronized)
+     */
+    private static class StringBuilderWriter extends Writer {
+
+        private final StringBuilder builder = new StringBuilder(512);
+
+        void reset() {
+            builder.setLength(0);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            builder.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            builder.append(str, off, off + len);
+        }
+
+        @Override
+        public void flush() {
+            // nothing to flush
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+
+        @Override
+        public String toString() {
+            return builder.toString();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.wedevol.xmpp.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wedevol.xmpp.bean.CcsAckMessage;
+import com.wedevol.xmpp.bean.CcsControlMessage;
+import com.wedevol.xmpp.bean.CcsInMessage;
+import com.wedevol.xmpp.bean.CcsInPacket;
+import com.wedevol.xmpp.bean.CcsNackMessage;
+import com.wedevol.xmpp.bean.CcsReceiptMessage;
+
+/**
+ * Decoder of the JSON packets received from FCM CCS. It reads the JSON with a streaming parser in a single pass,
+ * straight into the typed packet, without building an intermediate map of the whole message. The unknown fields are
+ * skipped.
+ *
+ * @author Charz++
+ */
+public class CcsPacketDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(CcsPacketDecoder.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory factory = mapper.getFactory();
+
+    /**
+     * Decodes a FCM CCS JSON packet
+     *
+     * @return the typed packet, or null if the JSON is invalid or the message type is unknown
+     */
+    public static CcsInPacket decode(String json) {
+        String messageType = null;
+        String messageId = null;
+        String from = null;
+        String category = null;
+        String registrationId = null;
+        String error = null;
+        String errorDescription = null;
+        String controlType = null;
+        Map<String, String> dataPayload = null;
+
+        try (JsonParser parser = factory.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                logger.error("Error parsing JSON string: {}", json);
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "message_type":
+                        messageType = parser.getValueAsString();
+                        break;
+                    case "message_id":
+                        messageId = parser.getValueAsString();
+                        break;
+                    case "from":
+                        from = parser.getValueAsString();
+                        break;
+                    case "category":
+                        category = parser.getValueAsString();
+                        break;
+                    case "registration_id":
+                        registrationId = parser.getValueAsString();
+                        break;
+                    case "error":
+                        error = parser.getValueAsString();
+                        break;
+                    case "error_description":
+                        errorDescription = parser.getValueAsString();
+                        break;
+                    case "control_type":
+                        controlType = parser.getValueAsString();
+                        break;
+                    case "data":
+                        dataPayload = token == JsonToken.START_OBJECT ? readStringMap(parser) : null;
+                        break;
+                    default:
+                        parser.skipChildren(); // unknown field (it does nothing for scalar values)
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error parsing JSON string: {}", json);
+            return null;
+        }
+
+        if (messageType == null) {
+            // Normal upstream message from a device client
+            return new CcsInMessage(from, category, messageId, dataPayload);
+        }
+        switch (messageType) {
+            case "ack":
+                return new CcsAckMessage(messageId, from, registrationId);
+            case "nack":
+                return new CcsNackMessage(messageId, from, error, errorDescription);
+            case "receipt":
+                return new CcsReceiptMessage(messageId, from, category, dataPayload);
+            case "control":
+                return new CcsControlMessage(controlType);
+            default:
+                logger.info("Received unknown FCM message type: {}", messageType);
+                return null;
+        }
+    }
+
+    /**
+     * Reads a JSON object of string values. Nested values are kept as their JSON text.
+     */
+    private static Map<String, String> readStringMap(JsonParser parser) throws IOException {
+        final Map<String, String> map = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String key = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                map.put(key, mapper.readTree(parser).toString());
+            } else if (token == JsonToken.VALUE_NULL) {
+                map.put(key, null);
+            } else {
+                map.put(key, parser.getValueAsString());
+            }
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.wedevol.xmpp.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of the registration tokens that FCM reported as dead (BAD_REGISTRATION, DEVICE_UNREGISTERED), checked before
+ * every send. A token is kept as its 64-bit hash: a Bloom filter answers the common case (a live token) with a few bit
+ * reads, and only its positives are confirmed in the exact tier, an open addressing table of the hashes (8 bytes per
+ * token). The hashes can be persisted in a file, where every new dead token is appended, so they survive a restart
+ * without storing the tokens themselves.
+ */
+public class DeadTokenFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadTokenFilter.class);
+
+    public static final int DEFAULT_EXPECTED_TOKENS = 1000000;
+
+    private static final int BLOOM_BITS_PER_TOKEN = 10; // ~1% of false positives
+    private static final int BLOOM_HASHES = 7;
+    private static final int INITIAL_TABLE_SIZE = 1024;
+
+    private final AtomicLongArray bloom;
+    private final int bloomBits;
+
+    // exact tier, the table is replaced when it grows
+    private volatile AtomicLongArray table = new AtomicLongArray(INITIAL_TABLE_SIZE);
+    private volatile int size = 0;
+
+    private DataOutputStream out = null;
+
+    public DeadTokenFilter() {
+        this(DEFAULT_EXPECTED_TOKENS);
+    }
+
+    /**
+     * @param expectedTokens the number of dead tokens the Bloom filter is sized for. More tokens are still exact, but
+     *        the Bloom filter lets more lookups through to the exact tier.
+     */
+    public DeadTokenFilter(int expectedTokens) {
+        if (expectedTokens < 1) {
+            throw new IllegalArgumentException("The expected number of tokens must be greater than zero");
+        }
+        final long bits = Math.max(64, (long) expectedTokens * BLOOM_BITS_PER_TOKEN);
+        this.bloom = new AtomicLongArray((int) ((bits + 63) / 64));
+        this.bloomBits = bloom.length() * 64;
+    }
+
+    /**
+     * Loads the dead tokens persisted in the file and appends the new ones to it from now on
+     */
+    public synchronized void open(Path path) throws IOException {
+        int loaded = 0;
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (true) {
+                    addHash(in.readLong());
+                    loaded++;
+                }
+            } catch (EOFException e) {
+                // end of the file, or a torn last record
+            }
+        }
+        close();
+        out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        logger.info("Dead tokens loaded from {}: {}", path, loaded);
+    }
+
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.error("Error closing the dead tokens file. Error: {}", e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * @return true if the token is known to be dead
+     */
+    public boolean isDead(String token) {
+        if (size == 0 || token == null) {
+            return false;
+        }
+        final long hash = hash(token);
+        return mightContain(hash) && contains(table, hash);
+    }
+
+    /**
+     * Records a dead token (and persists it if there is a file)
+     *
+     * @return true if the token was not known to be dead yet
+     */
+    public synchronized boolean add(String token) {
+        if (token == null) {
+            return false;
+        }
+        final long hash = hash(token);
+        if (!addHash(hash)) {
+            return false;
+        }
+        if (out != null) {
+            try {
+                out.writeLong(hash);
+                out.flush();
+            } catch (IOException e) {
+                logger.error("Error persisting a dead token. Error: {}", e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private synchronized boolean addHash(long hash) {
+        if (contains(table, hash)) {
+            return false;
+        }
+        if ((size + 1) * 4L > table.length() * 3L) {
+            table = resize(table);
+        }
+        insert(table, hash);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final int bit = bloomBit(hash, i);
+            final long mask = 1L << (bit & 63);
+            bloom.accumulateAndGet(bit >>> 6, mask, (word, value) -> word | value);
+        }
+        size++;
+        return true;
+    }
+
+    private boolean mightContain(long hash) {
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final int bit = bloomBit(hash, i);
+            if ((bloom.get(bit >>> 6) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The i-th Bloom bit of a hash, by double hashing with the two halves of the hash
+     */
+    private int bloomBit(long hash, int i) {
+        final int combined = (int) hash + i * (int) (hash >>> 32);
+        return Math.floorMod(combined, bloomBits);
+    }
+
+    private static boolean contains(AtomicLongArray table, long hash) {
+        final int mask = table.length() - 1;
+        for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+            final long slot = table.get(i);
+            if (slot == hash) {
+                return true;
+            }
+            if (slot == 0) {
+                return false;
+            }
+        }
+    }
+
+    private static void insert(AtomicLongArray table, long hash) {
+        final int mask = table.length() - 1;
+        int i = (int) hash & mask;
+        while (table.get(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        table.set(i, hash);
+    }
+
+    private static AtomicLongArray resize(AtomicLongArray table) {
+        final AtomicLongArray resized = new AtomicLongArray(table.length() * 2);
+        for (int i = 0; i < table.length(); i++) {
+            final long hash = table.get(i);
+            if (hash != 0) {
+                insert(resized, hash);
+            }
+        }
+        return resized;
+    }
+
+    /**
+     * 64-bit FNV-1a of the token, with a final mix so all the bits are well distributed
+     */
+    private static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash = (hash ^ token.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1; // zero marks the empty slots
+    }
+
+    /**
+     * @return the number of dead tokens
+     */
+    public int size() {
+        return size;
+    }
+
+}
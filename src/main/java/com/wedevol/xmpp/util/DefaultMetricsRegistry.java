@@ -0,0 +1,90 @@
+package com.wedevol.xmpp.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory metrics registry: {@link LongAdder} counters, {@link LatencyHistogram} histograms and gauges read on
+ * demand. It is the one exposed over JMX by the {@link JmxMetricsExporter}.
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry {
+
+    private final Map<String, LongAdderCounter> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdderCounter());
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return the current value of the counters, by name
+     */
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.getCount()));
+        return values;
+    }
+
+    /**
+     * @return the current value of the gauges, by name
+     */
+    public Map<String, Long> getGauges() {
+        final Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * @return the counter value, or null if it does not exist
+     */
+    public Long getCounter(String name) {
+        final LongAdderCounter counter = counters.get(name);
+        return counter != null ? counter.getCount() : null;
+    }
+
+    /**
+     * @return the gauge value, or null if it does not exist
+     */
+    public Long getGauge(String name) {
+        final LongSupplier gauge = gauges.get(name);
+        return gauge != null ? gauge.getAsLong() : null;
+    }
+
+    public LatencyHistogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    private static class LongAdderCounter implements Counter {
+
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void increment() {
+            count.increment();
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+package com.wedevol.xmpp.util;
+
+import java.util.concurrent.atomic.LongAdder;
+import com.wedevol.xmpp.bean.CcsReceiptMessage;
+import com.wedevol.xmpp.bean.DeliveryEvent;
+
+/**
+ * Bounded and expiring index of the downstream messages that requested a delivery receipt, used to match the receipts
+ * to their messages and measure the send to ack to delivery latencies. Every message is a single packed long (send time
+ * and ack latency) keyed by a 64-bit hash of its id in an open addressing table of longs (16 bytes per entry, no object
+ * per message). The index is split in generations of ttl/4: the oldest generation is dropped as a whole when it
+ * expires, or earlier when the newest one is full, so the expiration costs nothing per message. A hash collision could
+ * match a receipt to the wrong message, but with 64-bit hashes it is negligible for the sizes a generation can hold.
+ */
+public class DeliveryTracker {
+
+    public static final long DEFAULT_TTL_IN_MILLI = 3600000; // 1 hour
+    public static final int DEFAULT_MAX_ENTRIES = 1000000;
+
+    private static final int GENERATIONS = 4;
+    private static final int ACK_LATENCY_BITS = 24;
+    private static final long ACK_LATENCY_MASK = (1L << ACK_LATENCY_BITS) - 1;
+
+    private final long generationDuration;
+    private final int generationCapacity;
+    private final long epoch = Util.getCurrentTimeMillis();
+
+    // index 0 is the newest generation
+    private volatile Generation[] generations;
+    private volatile long nextRotation;
+
+    private final LongAdder evicted = new LongAdder();
+
+    public DeliveryTracker() {
+        this(DEFAULT_TTL_IN_MILLI, DEFAULT_MAX_ENTRIES);
+    }
+
+    public DeliveryTracker(long ttlInMillis, int maxEntries) {
+        if (ttlInMillis < GENERATIONS || maxEntries < GENERATIONS) {
+            throw new IllegalArgumentException("The ttl and the maximum number of entries must be greater than four");
+        }
+        this.generationDuration = ttlInMillis / GENERATIONS;
+        this.generationCapacity = maxEntries / GENERATIONS;
+        this.generations = new Generation[GENERATIONS];
+        for (int i = 0; i < GENERATIONS; i++) {
+            generations[i] = new Generation(generationCapacity);
+        }
+        this.nextRotation = epoch + generationDuration;
+    }
+
+    /**
+     * Starts tracking a message that was sent now
+     */
+    public void sent(String messageId) {
+        final long key = hash(messageId);
+        final long now = Util.getCurrentTimeMillis();
+        if (now >= nextRotation) {
+            rotate(now, false);
+        }
+        final long packed = (now - epoch) << ACK_LATENCY_BITS;
+        while (!generations[0].put(key, packed)) {
+            rotate(now, true);
+        }
+    }
+
+    /**
+     * Records the FCM ack of a tracked message
+     */
+    public void acked(String messageId) {
+        final long key = hash(messageId);
+        for (Generation generation : generations) {
+            final long packed = generation.get(key);
+            if (packed != Generation.ABSENT) {
+                final long sentAt = epoch + (packed >>> ACK_LATENCY_BITS);
+                // stored plus one, so zero means not acked yet
+                final long ackLatency = Math.min(Util.getCurrentTimeMillis() - sentAt + 1, ACK_LATENCY_MASK);
+                generation.replace(key, packed, (packed & ~ACK_LATENCY_MASK) | Math.max(1, ackLatency));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking a message that will not be delivered (e.g. it was nacked)
+     */
+    public void removed(String messageId) {
+        final long key = hash(messageId);
+        for (Generation generation : generations) {
+            if (generation.remove(key) != Generation.ABSENT) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Matches a receipt to its message and stops tracking it
+     *
+     * @return the delivery event, with unknown latencies (-1) if the message was not tracked or already expired
+     */
+    public DeliveryEvent delivered(CcsReceiptMessage receipt) {
+        final long now = Util.getCurrentTimeMillis();
+        if (now >= nextRotation) {
+            rotate(now, false);
+        }
+        final String messageId = receipt.getOriginalMessageId();
+        long packed = Generation.ABSENT;
+        if (messageId != null) {
+            final long key = hash(messageId);
+            for (Generation generation : generations) {
+                packed = generation.remove(key);
+                if (packed != Generation.ABSENT) {
+                    break;
+                }
+            }
+        }
+        if (packed == Generation.ABSENT) {
+            return new DeliveryEvent(receipt, -1, -1);
+        }
+        final long sentAt = epoch + (packed >>> ACK_LATENCY_BITS);
+        final long ackLatency = packed & ACK_LATENCY_MASK;
+        return new DeliveryEvent(receipt, ackLatency > 0 ? ackLatency - 1 : -1, now - sentAt);
+    }
+
+    /**
+     * Drops the expired generations, or the oldest one if the newest one is full, and opens a new one
+     */
+    private synchronized void rotate(long now, boolean full) {
+        final long expired = now >= nextRotation ? (now - nextRotation) / generationDuration + 1 : 0;
+        if (expired == 0 && !(full && generations[0].isFull())) {
+            return; // already rotated by another thread
+        }
+        final Generation[] current = generations;
+        final int dropped = (int) Math.min(Math.max(expired, 1), GENERATIONS);
+        final Generation[] rotated = new Generation[GENERATIONS];
+        for (int i = 0; i < GENERATIONS; i++) {
+            rotated[i] = i < dropped ? new Generation(generationCapacity) : current[i - dropped];
+        }
+        for (int i = GENERATIONS - dropped; i < GENERATIONS; i++) {
+            evicted.add(current[i].size);
+        }
+        generations = rotated;
+        nextRotation += expired * generationDuration;
+    }
+
+    /**
+     * 64-bit FNV-1a of the id, with a final mix so the low bits are well distributed
+     */
+    private static long hash(String messageId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash = (hash ^ messageId.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1; // zero marks the empty slots
+    }
+
+    /**
+     * @return the number of tracked messages
+     */
+    public int size() {
+        int size = 0;
+        for (Generation generation : generations) {
+            size += generation.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of messages dropped without a receipt because they expired or the index was full
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Open addressing map of hashes to packed longs with linear probing, filled up to its capacity. The table starts
+     * small and doubles at 75% of load, and the removals shift the following entries back, so there are no tombstones.
+     */
+    private static class Generation {
+
+        static final long ABSENT = -1; // the packed values are never negative
+
+        private static final int INITIAL_LENGTH = 16;
+
+        private final int capacity;
+        private long[] keys = new long[INITIAL_LENGTH];
+        private long[] values = new long[INITIAL_LENGTH];
+        private int mask = INITIAL_LENGTH - 1;
+        private volatile int size = 0;
+
+        Generation(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized long get(long key) {
+            final int i = indexOf(key);
+            return keys[i] == key ? values[i] : ABSENT;
+        }
+
+        /**
+         * Adds or replaces the value of the key
+         *
+         * @return false if the key is new and the generation is full
+         */
+        synchronized boolean put(long key, long value) {
+            int i = indexOf(key);
+            if (keys[i] != key) {
+                if (size >= capacity) {
+                    return false;
+                }
+                if ((size + 1) * 4 > keys.length * 3) {
+                    grow();
+                    i = indexOf(key);
+                }
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+            return true;
+        }
+
+        synchronized void replace(long key, long expected, long value) {
+            final int i = indexOf(key);
+            if (keys[i] == key && values[i] == expected) {
+                values[i] = value;
+            }
+        }
+
+        synchronized long remove(long key) {
+            int i = indexOf(key);
+            if (keys[i] != key) {
+                return ABSENT;
+            }
+            final long value = values[i];
+            // shift back the following entries of the run that could not take their own slot because of this one
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                final int home = (int) keys[j] & mask;
+                final boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!stays) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = 0;
+            size--;
+            return value;
+        }
+
+        /**
+         * @return the slot of the key, or the empty slot where it would be added
+         */
+        private int indexOf(long key) {
+            int i = (int) key & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    final int j = indexOf(oldKeys[i]);
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+
+        boolean isFull() {
+            return size >= capacity;
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.wedevol.xmpp.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded and expiring set of the recently seen keys (e.g. the ids of the upstream messages), to drop the ones that
+ * FCM delivers again when our ack is lost or late. Every key is stored as a 64-bit hash in an open addressing table of
+ * longs (8 bytes per entry, no object per key). The set is split in generations of ttl/4 that are dropped as a whole
+ * when they expire, or earlier when the newest one is full. A hash collision could make a new key look like a
+ * duplicate, but with 64-bit hashes it is negligible for the sizes a generation can hold.
+ */
+public class DuplicateFilter {
+
+    public static final long DEFAULT_TTL_IN_MILLI = 600000; // 10 minutes
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static final int GENERATIONS = 4;
+
+    private final long generationDuration;
+    private final int generationCapacity;
+
+    // index 0 is the newest generation
+    private volatile Generation[] generations;
+    private volatile long nextRotation;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    public DuplicateFilter() {
+        this(DEFAULT_TTL_IN_MILLI, DEFAULT_MAX_ENTRIES);
+    }
+
+    public DuplicateFilter(long ttlInMillis, int maxEntries) {
+        if (ttlInMillis < GENERATIONS || maxEntries < GENERATIONS) {
+            throw new IllegalArgumentException("The ttl and the maximum number of entries must be greater than four");
+        }
+        this.generationDuration = ttlInMillis / GENERATIONS;
+        this.generationCapacity = maxEntries / GENERATIONS;
+        this.generations = new Generation[GENERATIONS];
+        for (int i = 0; i < GENERATIONS; i++) {
+            generations[i] = new Generation(generationCapacity);
+        }
+        this.nextRotation = Util.getCurrentTimeMillis() + generationDuration;
+    }
+
+    /**
+     * Records the key if it was not seen within the ttl
+     *
+     * @return true if it is the first time the key is seen, false if it is a duplicate
+     */
+    public boolean firstSeen(String first, String second) {
+        final long hash = hash(first, second);
+        lookups.increment();
+        final long now = Util.getCurrentTimeMillis();
+        if (now >= nextRotation) {
+            rotate(now, false);
+        }
+        Generation[] current = generations;
+        for (int i = 1; i < GENERATIONS; i++) {
+            if (current[i].contains(hash)) {
+                hits.increment();
+                return false;
+            }
+        }
+        while (true) {
+            switch (current[0].add(hash)) {
+                case Generation.ADDED:
+                    return true;
+                case Generation.PRESENT:
+                    hits.increment();
+                    return false;
+                default: // full
+                    rotate(now, true);
+                    current = generations;
+            }
+        }
+    }
+
+    /**
+     * Drops the expired generations, or the oldest one if the newest one is full, and opens a new one
+     */
+    private synchronized void rotate(long now, boolean full) {
+        final long expired = now >= nextRotation ? (now - nextRotation) / generationDuration + 1 : 0;
+        if (expired == 0 && !(full && generations[0].isFull())) {
+            return; // already rotated by another thread
+        }
+        final Generation[] current = generations;
+        final int dropped = (int) Math.min(Math.max(expired, 1), GENERATIONS);
+        final Generation[] rotated = new Generation[GENERATIONS];
+        for (int i = 0; i < GENERATIONS; i++) {
+            rotated[i] = i < dropped ? new Generation(generationCapacity) : current[i - dropped];
+        }
+        generations = rotated;
+        nextRotation += expired * generationDuration;
+    }
+
+    /**
+     * 64-bit FNV-1a of the two strings, with a final mix so the low bits are well distributed
+     */
+    private static long hash(String first, String second) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, first);
+        hash = (hash ^ '|') * 0x100000001b3L;
+        hash = fnv(hash, second);
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1; // zero marks the empty slots
+    }
+
+    private static long fnv(long hash, String value) {
+        if (value == null) {
+            return hash;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the number of keys in the filter
+     */
+    public int size() {
+        int size = 0;
+        for (Generation generation : generations) {
+            size += generation.size;
+        }
+        return size;
+    }
+
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return the number of duplicates found
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the ratio of the lookups that were duplicates
+     */
+    public double getHitRate() {
+        final long total = lookups.sum();
+        return total == 0 ? 0 : (double) hits.sum() / total;
+    }
+
+    /**
+     * Open addressing set of hashes with linear probing, filled up to its capacity (75% of the table at most)
+     */
+    private static class Generation {
+
+        static final int ADDED = 0;
+        static final int PRESENT = 1;
+        static final int FULL = 2;
+
+        private final long[] table;
+        private final int mask;
+        private final int capacity;
+        private volatile int size = 0;
+
+        Generation(int capacity) {
+            int length = 1;
+            // at least one empty slot, so the probing always ends
+            while (length <= capacity + capacity / 3) {
+                length <<= 1;
+            }
+            this.table = new long[length];
+            this.mask = length - 1;
+            this.capacity = capacity;
+        }
+
+        synchronized boolean contains(long hash) {
+            for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+                if (table[i] == hash) {
+                    return true;
+                }
+                if (table[i] == 0) {
+                    return false;
+                }
+            }
+        }
+
+        synchronized int add(long hash) {
+            int i = (int) hash & mask;
+            for (; table[i] != 0; i = (i + 1) & mask) {
+                if (table[i] == hash) {
+                    return PRESENT;
+                }
+            }
+            if (size >= capacity) {
+                return FULL;
+            }
+            table[i] = hash;
+            size++;
+            return ADDED;
+        }
+
+        boolean isFull() {
+            return size >= capacity;
+        }
+    }
+
+}
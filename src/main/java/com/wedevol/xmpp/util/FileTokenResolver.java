@@ -0,0 +1,69 @@
+package com.wedevol.xmpp.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reference {@link TokenResolver} for local testing that reads the tokens from a text file with a line per user:
+ * <code>userId=token1,token2</code>. The empty lines and the lines starting with # are skipped. The file is read again
+ * when it is modified.
+ */
+public class FileTokenResolver implements TokenResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileTokenResolver.class);
+
+    private final Path path;
+    private volatile Map<String, List<String>> tokens = Collections.emptyMap();
+    private volatile FileTime lastModified = null;
+
+    public FileTokenResolver(Path path) {
+        this.path = path;
+        reloadIfModified();
+    }
+
+    @Override
+    public List<String> resolve(String userId) {
+        reloadIfModified();
+        return tokens.getOrDefault(userId, Collections.emptyList());
+    }
+
+    private synchronized void reloadIfModified() {
+        try {
+            final FileTime modified = Files.getLastModifiedTime(path);
+            if (modified.equals(lastModified)) {
+                return;
+            }
+            final Map<String, List<String>> loaded = new HashMap<>();
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                final String trimmed = line.trim();
+                final int separator = trimmed.indexOf('=');
+                if (trimmed.isEmpty() || trimmed.startsWith("#") || separator < 1) {
+                    continue;
+                }
+                final List<String> userTokens = new ArrayList<>();
+                for (String token : trimmed.substring(separator + 1).split(",")) {
+                    if (!token.trim().isEmpty()) {
+                        userTokens.add(token.trim());
+                    }
+                }
+                loaded.put(trimmed.substring(0, separator).trim(), Collections.unmodifiableList(userTokens));
+            }
+            tokens = loaded;
+            lastModified = modified;
+            logger.info("Registration tokens loaded from {}. Users: {}", path, loaded.size());
+        } catch (IOException e) {
+            logger.error("Error reading the registration tokens file {}. Error: {}", path, e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.wedevol.xmpp.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes a {@link DefaultMetricsRegistry} as a read-only MBean. Every counter and gauge is an attribute, and every
+ * histogram gives the attributes <code>name.count</code>, <code>.mean</code>, <code>.p50</code>, <code>.p90</code>,
+ * <code>.p99</code>, <code>.p999</code> and <code>.max</code>. The attributes are read from the registry on every
+ * request, so the metrics created later (e.g. a new nack error code) show up as well.
+ */
+public class JmxMetricsExporter implements DynamicMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(JmxMetricsExporter.class);
+
+    private static final String[] HISTOGRAM_SUFFIXES = {".count", ".mean", ".p50", ".p90", ".p99", ".p999", ".max"};
+
+    private final DefaultMetricsRegistry registry;
+    private ObjectName objectName = null;
+
+    public JmxMetricsExporter(DefaultMetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the MBean in the platform MBean server with the name
+     * <code>com.wedevol.xmpp:type=CcsClient,name=&lt;name&gt;</code>
+     *
+     * @return true if it was registered
+     */
+    public synchronized boolean register(String name) {
+        try {
+            final ObjectName newName = new ObjectName("com.wedevol.xmpp:type=CcsClient,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+            objectName = newName;
+            logger.info("Metrics exposed over JMX: {}", objectName);
+            return true;
+        } catch (JMException e) {
+            logger.error("Error registering the metrics MBean. Error: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.error("Error unregistering the metrics MBean. Error: {}", e.getMessage());
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final Long counter = registry.getCounter(attribute);
+        if (counter != null) {
+            return counter;
+        }
+        final Long gauge = registry.getGauge(attribute);
+        if (gauge != null) {
+            return gauge;
+        }
+        final int separator = attribute.lastIndexOf('.');
+        final LatencyHistogram histogram =
+                separator > 0 ? registry.getHistogram(attribute.substring(0, separator)) : null;
+        if (histogram != null) {
+            switch (attribute.substring(separator)) {
+                case ".count":
+                    return histogram.getCount();
+                case ".mean":
+                    return histogram.getMean();
+                case ".p50":
+                    return histogram.getValueAtPercentile(50);
+                case ".p90":
+                    return histogram.getValueAtPercentile(90);
+                case ".p99":
+                    return histogram.getValueAtPercentile(99);
+                case ".p999":
+                    return histogram.getValueAtPercentile(99.9);
+                case ".max":
+                    return histogram.getMax();
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException("Unknown metric: " + attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // skipped, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList(); // read-only
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "The metrics MBean has no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : registry.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), "Counter", true, false, false));
+        }
+        for (String name : registry.getGauges().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), "Gauge", true, false, false));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : registry.getHistograms().entrySet()) {
+            for (String suffix : HISTOGRAM_SUFFIXES) {
+                final String type = suffix.equals(".mean") ? Double.class.getName() : Long.class.getName();
+                attributes.add(new MBeanAttributeInfo(entry.getKey() + suffix, type, "Histogram", true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "FCM CCS client metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+}
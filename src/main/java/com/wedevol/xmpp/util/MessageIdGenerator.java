@@ -0,0 +1,13 @@
+package com.wedevol.xmpp.util;
+
+/**
+ * Generator of the unique ids of the downstream messages. Implementations must be thread safe.
+ */
+public interface MessageIdGenerator {
+
+    /**
+     * @return a new unique message id
+     */
+    String nextId();
+
+}
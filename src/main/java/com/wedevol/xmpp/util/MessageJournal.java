@@ -0,0 +1,360 @@
+package com.wedevol.xmpp.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.wedevol.xmpp.bean.Message;
+import com.wedevol.xmpp.bean.MessagePriority;
+
+/**
+ * Append-only journal of the downstream messages. It records when a message is enqueued and when FCM answers it (ACK,
+ * or NACK for any final failure), so the unanswered messages can be replayed after a restart or a crash. The events
+ * are appended to an in-memory queue and written by a single journal thread that fsyncs once per batch (group commit),
+ * so the callers never wait for the disk.
+ * <p>
+ * It is not a write-ahead log: a message is sent to FCM before its event is on disk. A crash loses the events of up
+ * to one flush interval, i.e. the messages enqueued in it (possibly already accepted by FCM) are not replayed, and the
+ * messages answered in it are sent again after the restart. The delivery is at-least-once for the messages whose
+ * enqueue event was flushed.
+ * <p>
+ * The file is compacted periodically by copying only the records of the messages that are still unanswered, read back
+ * from the file itself: only their ids are kept on the heap, so the journal does not hold a copy of the pending
+ * messages that may be spilled to disk.
+ * <p>
+ * Record layout: [int payload length][int crc32 of the payload][payload]. Payload: [byte type][int id length][id]
+ * and, for the enqueue types, [long timestamp][int json length][json]. A high priority message is enqueued with its own
+ * type, so the journals written before the priority lanes are still read.
+ */
+public class MessageJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageJournal.class);
+
+    private static final byte TYPE_ENQUEUE = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final byte TYPE_NACK = 3;
+    private static final byte TYPE_ENQUEUE_HIGH = 4;
+
+    private static final long DEFAULT_FLUSH_INTERVAL_IN_MILLI = 10;
+    private static final long COMPACTION_INTERVAL_IN_MILLI = 60000;
+    private static final int MIN_RECORDS_TO_COMPACT = 10000;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private final Path path;
+    private final long flushInterval;
+    private FileChannel channel;
+    private ScheduledExecutorService writer;
+
+    // events waiting for the next group commit
+    private final Queue<byte[]> events = new ConcurrentLinkedQueue<>();
+
+    // ids of the unanswered messages, whose records are kept by the compaction
+    private final Set<String> liveIds = ConcurrentHashMap.newKeySet();
+    private long recordsSinceCompaction = 0;
+
+    public MessageJournal(Path path) {
+        this(path, DEFAULT_FLUSH_INTERVAL_IN_MILLI);
+    }
+
+    public MessageJournal(Path path, long flushInterval) {
+        this.path = path;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Opens the journal and replays it
+     *
+     * @return the unanswered messages in timestamp order
+     */
+    public synchronized List<Message> open() throws IOException {
+        final List<Message> replayed = replay();
+        // rewrite the journal with the replayed messages only, it also drops a torn record at the end of the file
+        replayed.forEach(message -> liveIds.add(message.getMessageId()));
+        rewrite(replayed);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "ccs-message-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        writer.scheduleWithFixedDelay(this::compactIfNeeded, COMPACTION_INTERVAL_IN_MILLI, COMPACTION_INTERVAL_IN_MILLI,
+                TimeUnit.MILLISECONDS);
+        logger.info("Message journal opened: {}. Replayed messages: {}", path, replayed.size());
+        return replayed;
+    }
+
+    public void enqueued(Message message) {
+        liveIds.add(message.getMessageId());
+        events.add(encode(enqueueTypeOf(message), message.getMessageId(), message));
+    }
+
+    public void acked(String messageId) {
+        if (liveIds.remove(messageId)) {
+            events.add(encode(TYPE_ACK, messageId, null));
+        }
+    }
+
+    public void nacked(String messageId) {
+        if (liveIds.remove(messageId)) {
+            events.add(encode(TYPE_NACK, messageId, null));
+        }
+    }
+
+    /**
+     * @return the number of messages that are still unanswered
+     */
+    public int getLiveCount() {
+        return liveIds.size();
+    }
+
+    /**
+     * @return the number of events waiting for the next group commit
+     */
+    public int getUnflushedCount() {
+        return events.size();
+    }
+
+    /**
+     * Writes the queued events and fsyncs them once for the whole batch
+     */
+    synchronized void flush() {
+        if (channel == null || events.isEmpty()) {
+            return;
+        }
+        final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        byte[] event;
+        int count = 0;
+        while ((event = events.poll()) != null) {
+            batch.write(event, 0, event.length);
+            count++;
+        }
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            recordsSinceCompaction += count;
+        } catch (IOException e) {
+            logger.error("Error writing the message journal. Error: {}", e.getMessage());
+        }
+    }
+
+    private synchronized void compactIfNeeded() {
+        if (recordsSinceCompaction < Math.max(MIN_RECORDS_TO_COMPACT, 4L * liveIds.size())) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.error("Error compacting the message journal. Error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the journal with the enqueue records of the unanswered messages only. The records are streamed from the
+     * current file, so the compaction needs no copy of the messages in memory.
+     */
+    public synchronized void compact() throws IOException {
+        flush(); // the events queued from now on go to the new file
+        channel.close();
+        int live = 0;
+        try {
+            final Path tmp = tmpPath();
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(FileChannel.open(path))));
+                    FileChannel out = openTmp(tmp);
+                    OutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(out))) {
+                final CRC32 crc = new CRC32();
+                byte[] payload;
+                while ((payload = readPayload(in, crc)) != null) {
+                    final DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    final byte type = record.readByte();
+                    // an id enqueued more than once keeps all its enqueue records, the replay takes the last one
+                    if ((type == TYPE_ENQUEUE || type == TYPE_ENQUEUE_HIGH) && liveIds.contains(readString(record))) {
+                        buffered.write(frame(payload));
+                        live++;
+                    }
+                }
+                buffered.flush();
+                out.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        recordsSinceCompaction = 0;
+        logger.info("Message journal compacted. Live messages: {}", live);
+    }
+
+    private void rewrite(List<Message> messages) throws IOException {
+        final Path tmp = tmpPath();
+        try (FileChannel out = openTmp(tmp);
+                OutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(out))) {
+            for (Message message : messages) {
+                buffered.write(encode(enqueueTypeOf(message), message.getMessageId(), message));
+            }
+            buffered.flush();
+            out.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path tmpPath() {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    private static FileChannel openTmp(Path tmp) throws IOException {
+        return FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Reads the payload of the next record and checks its checksum
+     *
+     * @return the payload, or null at the end of the file or at a torn or corrupted record
+     */
+    private static byte[] readPayload(DataInputStream data, CRC32 crc) throws IOException {
+        try {
+            final int length = data.readInt();
+            final int checksum = data.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                logger.info("Corrupted record in the message journal. Stopping the read.");
+                return null;
+            }
+            final byte[] payload = new byte[length];
+            data.readFully(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                logger.info("Corrupted record in the message journal. Stopping the read.");
+                return null;
+            }
+            return payload;
+        } catch (EOFException e) {
+            return null; // end of the file or torn record of a crash
+        }
+    }
+
+    private List<Message> replay() throws IOException {
+        final Map<String, Message> messages = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return new ArrayList<>();
+        }
+        try (InputStream in = new BufferedInputStream(Channels.newInputStream(FileChannel.open(path)));
+                DataInputStream data = new DataInputStream(in)) {
+            final CRC32 crc = new CRC32();
+            byte[] payload;
+            while ((payload = readPayload(data, crc)) != null) {
+                final DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                final byte type = record.readByte();
+                final String messageId = readString(record);
+                if (type == TYPE_ENQUEUE || type == TYPE_ENQUEUE_HIGH) {
+                    final long timestamp = record.readLong();
+                    final MessagePriority priority = type == TYPE_ENQUEUE_HIGH ? MessagePriority.HIGH
+                            : MessagePriority.NORMAL;
+                    messages.put(messageId, Message.from(messageId, timestamp, readString(record), priority));
+                } else {
+                    messages.remove(messageId);
+                }
+            }
+        }
+        return messages.values().stream().sorted(Comparator.comparing(Message::getTimestamp))
+                .collect(Collectors.toList());
+    }
+
+    private static byte enqueueTypeOf(Message message) {
+        return message.getPriority() == MessagePriority.HIGH ? TYPE_ENQUEUE_HIGH : TYPE_ENQUEUE;
+    }
+
+    private static byte[] encode(byte type, String messageId, Message message) {
+        try {
+            final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+            final DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(type);
+            writeString(payload, messageId);
+            if (type == TYPE_ENQUEUE || type == TYPE_ENQUEUE_HIGH) {
+                payload.writeLong(message.getTimestamp());
+                writeString(payload, message.getJsonRequest());
+            }
+            return frame(payloadBytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException("Error encoding a journal record", e); // not thrown by in-memory streams
+        }
+    }
+
+    /**
+     * @return the record of the payload: its length, its checksum and the payload itself
+     */
+    private static byte[] frame(byte[] payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(payload.length + 8);
+        final DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(payload.length);
+        record.writeInt((int) crc.getValue());
+        record.write(payload);
+        return recordBytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the queued events and closes the journal
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        writer.shutdown();
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing the message journal. Error: {}", e.getMessage());
+        }
+        channel = null;
+    }
+
+}
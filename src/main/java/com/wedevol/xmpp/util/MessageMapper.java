@@ -3,9 +3,12 @@ package com.wedevol.xmpp.util;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wedevol.xmpp.bean.CcsInMessage;
 import com.wedevol.xmpp.bean.CcsOutMessage;
@@ -20,12 +23,13 @@ public class MessageMapper {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageMapper.class);
     private static ObjectMapper mapper = new ObjectMapper();
+    private static final String DELIVERY_RECEIPT_REQUESTED_FIELD = "\"delivery_receipt_requested\"";
 
     /**
-     * Creates a JSON from a FCM outgoing message attributes
+     * Creates a JSON from a FCM outgoing message attributes (streamed, without the intermediate map)
      */
     public static String toJsonString(CcsOutMessage outMessage) {
-        return toJsonString(mapFrom(outMessage));
+        return CcsOutMessageSerializer.toJsonString(outMessage);
     }
 
     /**
@@ -39,11 +43,7 @@ public class MessageMapper {
      * Creates a JSON encoded ACK message for a received upstream message
      */
     public static String createJsonAck(String to, String messageId) {
-        final Map<String, Object> map = new HashMap<>();
-        map.put("message_type", "ack");
-        map.put("to", to);
-        map.put("message_id", messageId);
-        return toJsonString(map);
+        return CcsOutMessageSerializer.toJsonAck(to, messageId);
     }
 
     public static String toJsonString(Map<String, Object> jsonMap) {
@@ -55,6 +55,78 @@ public class MessageMapper {
         return null;
     }
 
+    /**
+     * Reads the recipient of a downstream message JSON. The parsing stops at the "to" field, which is the first one
+     * written by the serializer.
+     *
+     * @return the recipient, or null if there is none
+     */
+    public static String recipientOf(String jsonRequest) {
+        try (JsonParser parser = mapper.getFactory().createParser(jsonRequest)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("to".equals(field)) {
+                    return parser.getValueAsString();
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            logger.error("Error parsing JSON string: {}", jsonRequest);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the recipient and the collapse key of a downstream message JSON, skipping the payloads
+     *
+     * @return the "to|collapse_key" group of the message, empty if it is not collapsible
+     */
+    public static Optional<String> collapseGroupOf(String jsonRequest) {
+        String to = null;
+        String collapseKey = null;
+        try (JsonParser parser = mapper.getFactory().createParser(jsonRequest)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return Optional.empty();
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME && (to == null || collapseKey == null)) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("to".equals(field)) {
+                    to = parser.getValueAsString();
+                } else if ("collapse_key".equals(field)) {
+                    collapseKey = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error parsing JSON string: {}", jsonRequest);
+            return Optional.empty();
+        }
+        return to != null && collapseKey != null ? Optional.of(to + "|" + collapseKey) : Optional.empty();
+    }
+
+    /**
+     * Checks if a downstream message JSON requests a delivery receipt, by scanning for the field instead of parsing the
+     * whole message (it is checked for every downstream message)
+     */
+    public static boolean isDeliveryReceiptRequested(String jsonRequest) {
+        final int field = jsonRequest.indexOf(DELIVERY_RECEIPT_REQUESTED_FIELD);
+        if (field < 0) {
+            return false;
+        }
+        int i = field + DELIVERY_RECEIPT_REQUESTED_FIELD.length();
+        while (i < jsonRequest.length()
+                && (Character.isWhitespace(jsonRequest.charAt(i)) || jsonRequest.charAt(i) == ':')) {
+            i++;
+        }
+        return jsonRequest.startsWith("true", i);
+    }
+
     @SuppressWarnings("unchecked")
     public static Map<String, Object> toMapFromJsonString(String json) {
         try {
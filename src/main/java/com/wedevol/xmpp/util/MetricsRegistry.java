@@ -0,0 +1,37 @@
+package com.wedevol.xmpp.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the client metrics. The default one ({@link DefaultMetricsRegistry}) keeps them in memory and is exposed
+ * over JMX. Implement it to record the metrics in your own monitoring library. The counters and histograms are resolved
+ * once and then recorded in the hot path, so the recording must be cheap and thread safe.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * @return the counter with the given name, created if it does not exist
+     */
+    Counter counter(String name);
+
+    /**
+     * @return the histogram with the given name, created if it does not exist
+     */
+    Histogram histogram(String name);
+
+    /**
+     * Registers a value that is read when the metrics are collected (e.g. a queue size)
+     */
+    void gauge(String name, LongSupplier value);
+
+    interface Counter {
+
+        void increment();
+    }
+
+    interface Histogram {
+
+        void record(long value);
+    }
+
+}
@@ -0,0 +1,254 @@
+package com.wedevol.xmpp.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.wedevol.xmpp.bean.Message;
+import com.wedevol.xmpp.bean.MessagePriority;
+
+/**
+ * Messages waiting for an available connection. They are kept on the heap up to a budget of JSON bytes; past it, the
+ * JSON of the new messages is spilled to a segment file and only a small index entry (id, timestamp, priority and the
+ * position in the file) stays on the heap, so a long outage does not fill the heap with message copies. The spilled
+ * JSON is read back when the message is taken. The segment file is truncated every time the last spilled message
+ * leaves the store, and deleted when the store is closed: the durability of the messages is the job of the
+ * {@link MessageJournal}.
+ */
+public class PendingMessageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PendingMessageStore.class);
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong heapBytes = new AtomicLong();
+
+    private Path spillPath = null;
+    private long heapBudget = Long.MAX_VALUE;
+
+    // guarded by this
+    private FileChannel spillChannel = null;
+    private long spillPosition = 0;
+    private int spilledCount = 0;
+
+    /**
+     * Spills the JSON of the messages to the file once the JSON kept on the heap exceeds the budget (in bytes)
+     */
+    public synchronized void setSpill(Path spillPath, long heapBudgetInBytes) {
+        if (heapBudgetInBytes < 0) {
+            throw new IllegalArgumentException("The heap budget must be positive");
+        }
+        this.spillPath = spillPath;
+        this.heapBudget = heapBudgetInBytes;
+    }
+
+    /**
+     * Adds a message, replacing the one with the same id
+     */
+    public void put(Message message) {
+        final String json = message.getJsonRequest();
+        final long size = json.length() * 2L; // chars on the heap
+        Entry entry = null;
+        if (spillPath != null && heapBytes.get() + size > heapBudget) {
+            entry = spill(message);
+        }
+        if (entry == null) {
+            heapBytes.addAndGet(size);
+            entry = new Entry(message);
+        }
+        release(entries.put(message.getMessageId(), entry));
+    }
+
+    /**
+     * Removes a message
+     *
+     * @return the message, with its JSON read back if it was spilled
+     */
+    public Optional<Message> remove(String messageId) {
+        final Entry entry = entries.remove(messageId);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (entry.message != null) {
+            heapBytes.addAndGet(entry.message.getJsonRequest().length() * -2L);
+            return Optional.of(entry.message);
+        }
+        return Optional.ofNullable(unspill(messageId, entry, true));
+    }
+
+    /**
+     * Removes a message without reading back its JSON (e.g. superseded by a newer one)
+     *
+     * @return true if the message was in the store
+     */
+    public boolean discard(String messageId) {
+        final Entry entry = entries.remove(messageId);
+        release(entry);
+        return entry != null;
+    }
+
+    public boolean containsKey(String messageId) {
+        return entries.containsKey(messageId);
+    }
+
+    /**
+     * @return a snapshot of the ids of the messages, the high priority ones first and then the oldest ones
+     */
+    public List<String> idsInSendOrder() {
+        final Comparator<Map.Entry<String, Entry>> byPriority = Comparator.comparing(e -> e.getValue().priority);
+        return entries.entrySet().stream()
+                .sorted(byPriority.thenComparingLong(e -> e.getValue().timestamp))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private void release(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        if (entry.message != null) {
+            heapBytes.addAndGet(entry.message.getJsonRequest().length() * -2L);
+        } else {
+            unspill(null, entry, false);
+        }
+    }
+
+    /**
+     * Writes the JSON of the message at the end of the segment file
+     *
+     * @return the index entry, or null if the file could not be written (the message is kept on the heap)
+     */
+    private synchronized Entry spill(Message message) {
+        final byte[] json = message.getJsonRequest().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (spillChannel == null) {
+                spillChannel = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                logger.info("Spilling the pending messages to {}", spillPath);
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(json);
+            long position = spillPosition;
+            while (buffer.hasRemaining()) {
+                position += spillChannel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            logger.error("Error spilling the pending message {}. Error: {}", message.getMessageId(), e.getMessage());
+            return null;
+        }
+        final Entry entry = new Entry(message, spillPosition, json.length);
+        spillPosition += json.length;
+        spilledCount++;
+        return entry;
+    }
+
+    /**
+     * Accounts a spilled message that left the store, reading back its JSON if asked
+     */
+    private synchronized Message unspill(String messageId, Entry entry, boolean read) {
+        if (spillChannel == null) {
+            return null; // closed
+        }
+        Message message = null;
+        if (read) {
+            final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (spillChannel.read(buffer, entry.position + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of the spill file");
+                    }
+                }
+                final String json = new String(buffer.array(), StandardCharsets.UTF_8);
+                message = Message.from(messageId, entry.timestamp, json, entry.priority);
+            } catch (IOException e) {
+                logger.error("Error reading the spilled pending message {}. Error: {}", messageId, e.getMessage());
+            }
+        }
+        if (--spilledCount == 0) {
+            // nothing else refers to the file content
+            try {
+                spillChannel.truncate(0);
+            } catch (IOException e) {
+                logger.error("Error truncating the spill file. Error: {}", e.getMessage());
+            }
+            spillPosition = 0;
+        }
+        return message;
+    }
+
+    /**
+     * Closes and deletes the segment file. The spilled messages still in the store are lost.
+     */
+    public synchronized void close() {
+        if (spillChannel == null) {
+            return;
+        }
+        try {
+            spillChannel.close();
+            Files.deleteIfExists(spillPath);
+        } catch (IOException e) {
+            logger.error("Error closing the spill file. Error: {}", e.getMessage());
+        }
+        entries.values().removeIf(entry -> entry.message == null);
+        spillChannel = null;
+        spillPosition = 0;
+        spilledCount = 0;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of messages whose JSON is in the segment file
+     */
+    public synchronized int getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * @return the approximate heap used by the JSON of the messages that are not spilled, in bytes
+     */
+    public long getHeapBytes() {
+        return heapBytes.get();
+    }
+
+    /**
+     * The message itself when it is on the heap, or where its JSON is in the segment file
+     */
+    private static class Entry {
+
+        final Message message;
+        final long timestamp;
+        final MessagePriority priority;
+        final long position;
+        final int length;
+
+        Entry(Message message) {
+            this.message = message;
+            this.timestamp = message.getTimestamp();
+            this.priority = message.getPriority();
+            this.position = -1;
+            this.length = 0;
+        }
+
+        Entry(Message spilled, long position, int length) {
+            this.message = null;
+            this.timestamp = spilled.getTimestamp();
+            this.priority = spilled.getPriority();
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.wedevol.xmpp.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Token bucket rate limiter keyed by recipient (registration token or topic). The buckets are split in shards, each
+ * one with its own lock, so the sends to different recipients rarely contend.
+ * <p>
+ * By default a recipient has a bucket only after FCM throttled it (DEVICE_MESSAGE_RATE_EXCEEDED,
+ * TOPICS_MESSAGE_RATE_EXCEEDED), and every throttling halves its rate. The rate then recovers linearly to the base rate
+ * during the recovery period, and the bucket is evicted once it is recovered and idle, so the memory is bounded by the
+ * recently throttled recipients. With {@link #setLimitAllRecipients(boolean)} every recipient gets a bucket at the
+ * base rate.
+ */
+public class RecipientRateLimiter {
+
+    public static final double DEFAULT_RATE_PER_SECOND = 4; // FCM allows 240 messages per minute to a device
+    public static final int DEFAULT_BURST = 20;
+    public static final long DEFAULT_RECOVERY_IN_MILLI = 60000;
+    public static final long DEFAULT_IDLE_TIMEOUT_IN_MILLI = 60000;
+
+    private static final double MIN_RATE_PER_SECOND = 1.0 / 60;
+    private static final int SHARDS = 64;
+
+    private final double baseRate;
+    private final int burst;
+    private final long recovery;
+    private final long idleTimeout;
+    private volatile boolean limitAllRecipients = false;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicInteger size = new AtomicInteger();
+
+    public RecipientRateLimiter() {
+        this(DEFAULT_RATE_PER_SECOND, DEFAULT_BURST, DEFAULT_RECOVERY_IN_MILLI, DEFAULT_IDLE_TIMEOUT_IN_MILLI);
+    }
+
+    public RecipientRateLimiter(double ratePerSecond, int burst, long recoveryInMillis, long idleTimeoutInMillis) {
+        if (ratePerSecond < MIN_RATE_PER_SECOND || burst < 1 || recoveryInMillis < 1) {
+            throw new IllegalArgumentException("The rate, the burst and the recovery must be greater than zero");
+        }
+        this.baseRate = ratePerSecond;
+        this.burst = burst;
+        this.recovery = recoveryInMillis;
+        this.idleTimeout = idleTimeoutInMillis;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Starts evicting the idle buckets in the given scheduler
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        final long period = Math.max(1000, idleTimeout / 2);
+        scheduler.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the base rate to every recipient, not only to the throttled ones
+     */
+    public void setLimitAllRecipients(boolean limitAllRecipients) {
+        this.limitAllRecipients = limitAllRecipients;
+    }
+
+    /**
+     * @return true if the sends have to be checked (there are buckets or every recipient is limited)
+     */
+    public boolean isActive() {
+        return limitAllRecipients || size.get() > 0;
+    }
+
+    /**
+     * Takes a token of the recipient's bucket for a send
+     *
+     * @return 0 if the message can be sent now, or the time to wait in millis (the token is already taken)
+     */
+    public long reserve(String recipient) {
+        if (recipient == null) {
+            return 0;
+        }
+        final Shard shard = shardOf(recipient);
+        synchronized (shard) {
+            Bucket bucket = shard.buckets.get(recipient);
+            if (bucket == null) {
+                if (!limitAllRecipients) {
+                    return 0;
+                }
+                bucket = shard.create(recipient);
+            }
+            return bucket.take(Util.getCurrentTimeMillis());
+        }
+    }
+
+    /**
+     * Halves the rate of the recipient after FCM throttled it
+     */
+    public void throttled(String recipient) {
+        if (recipient == null) {
+            return;
+        }
+        final Shard shard = shardOf(recipient);
+        synchronized (shard) {
+            Bucket bucket = shard.buckets.get(recipient);
+            if (bucket == null) {
+                bucket = shard.create(recipient);
+            }
+            bucket.throttle(Util.getCurrentTimeMillis());
+        }
+    }
+
+    /**
+     * Removes the buckets not used within the idle timeout once their rate recovered
+     */
+    void evictIdle() {
+        final long now = Util.getCurrentTimeMillis();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                final Iterator<Bucket> iterator = shard.buckets.values().iterator();
+                while (iterator.hasNext()) {
+                    final Bucket bucket = iterator.next();
+                    if (now - bucket.lastUsed >= idleTimeout && bucket.rate(now) >= baseRate) {
+                        iterator.remove();
+                        size.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private Shard shardOf(String recipient) {
+        final int hash = recipient.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (SHARDS - 1)];
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private class Shard {
+
+        final Map<String, Bucket> buckets = new HashMap<>();
+
+        Bucket create(String recipient) {
+            final Bucket bucket = new Bucket(Util.getCurrentTimeMillis());
+            buckets.put(recipient, bucket);
+            size.incrementAndGet();
+            return bucket;
+        }
+    }
+
+    /**
+     * Guarded by the lock of its shard
+     */
+    private class Bucket {
+
+        double tokens = burst;
+        long updatedAt;
+        long lastUsed;
+        // rate set by the last throttling and when it happened (0 if never throttled)
+        double throttledRate = baseRate;
+        long throttledAt = 0;
+
+        Bucket(long now) {
+            this.updatedAt = now;
+            this.lastUsed = now;
+        }
+
+        /**
+         * @return the rate in tokens per second, recovering linearly to the base rate after a throttling
+         */
+        double rate(long now) {
+            if (throttledAt == 0 || now - throttledAt >= recovery) {
+                return baseRate;
+            }
+            return throttledRate + (baseRate - throttledRate) * (now - throttledAt) / recovery;
+        }
+
+        private void refill(long now, double rate) {
+            if (now > updatedAt) {
+                tokens = Math.min(burst, tokens + rate * (now - updatedAt) / 1000);
+                updatedAt = now;
+            }
+        }
+
+        long take(long now) {
+            final double rate = rate(now);
+            refill(now, rate);
+            lastUsed = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / rate);
+        }
+
+        void throttle(long now) {
+            final double rate = rate(now);
+            refill(now, rate);
+            throttledRate = Math.max(MIN_RATE_PER_SECOND, rate / 2);
+            throttledAt = now;
+            lastUsed = now;
+            tokens = Math.min(tokens, 0); // FCM says the recipient is over its limit right now
+        }
+    }
+
+}
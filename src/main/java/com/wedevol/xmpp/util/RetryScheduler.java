@@ -0,0 +1,118 @@
+package com.wedevol.xmpp.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retry engine on top of a shared scheduler. A failed attempt is rescheduled with the jittered exponential delay of its
+ * {@link BackOffStrategy}, so no thread is parked while waiting for the next try.
+ */
+public class RetryScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder totalDelay = new LongAdder();
+    private final LongAccumulator maxDelay = new LongAccumulator(Long::max, 0);
+
+    public RetryScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Runs the attempt in the current thread. If it fails, the next tries run in the scheduler until one succeeds or
+     * the back off has no tries left.
+     *
+     * @param attempt returns true if it succeeded
+     * @param backoff the back off strategy that gives the delays and the number of tries
+     * @param onExhausted called when all the tries failed
+     */
+    public void execute(BooleanSupplier attempt, BackOffStrategy backoff, Runnable onExhausted) {
+        tryAttempt(attempt, backoff, onExhausted, Runnable::run);
+    }
+
+    /**
+     * Runs every try, the first one included, in the given executor instead of the scheduler. Use it for attempts that
+     * block, such as opening a connection, so the scheduler threads only time the delays.
+     */
+    public void execute(BooleanSupplier attempt, BackOffStrategy backoff, Runnable onExhausted, Executor executor) {
+        try {
+            executor.execute(() -> tryAttempt(attempt, backoff, onExhausted, executor));
+        } catch (RejectedExecutionException e) {
+            exhausted.increment();
+            logger.info("The attempt could not be executed. Error: {}", e.getMessage());
+            onExhausted.run();
+        }
+    }
+
+    private void tryAttempt(BooleanSupplier attempt, BackOffStrategy backoff, Runnable onExhausted,
+            Executor executor) {
+        attempts.increment();
+        if (attempt.getAsBoolean()) {
+            return;
+        }
+        final long delay = backoff.nextDelay();
+        if (delay < 0) {
+            exhausted.increment();
+            logger.info("Retry Failed: Total of attempts: {}.", backoff.getNumberOfRetries());
+            onExhausted.run();
+            return;
+        }
+        retries.increment();
+        totalDelay.add(delay);
+        maxDelay.accumulate(delay);
+        try {
+            scheduler.schedule(() -> execute(attempt, backoff, onExhausted, executor), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            exhausted.increment();
+            logger.info("The retry could not be scheduled. Error: {}", e.getMessage());
+            onExhausted.run();
+        }
+    }
+
+    /**
+     * @return the number of attempts, first tries included
+     */
+    public long getAttemptCount() {
+        return attempts.sum();
+    }
+
+    /**
+     * @return the number of rescheduled attempts
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * @return the number of operations that failed in all their tries
+     */
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    public long getTotalDelayMillis() {
+        return totalDelay.sum();
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelay.get();
+    }
+
+    public double getAverageDelayMillis() {
+        final long count = retries.sum();
+        return count == 0 ? 0 : (double) totalDelay.sum() / count;
+    }
+
+}
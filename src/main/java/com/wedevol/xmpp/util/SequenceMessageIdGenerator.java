@@ -0,0 +1,56 @@
+package com.wedevol.xmpp.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * High-throughput message id generator with the format m-{node}-{epoch}-{thread}-{counter} (base 36). The node
+ * distinguishes the servers, the epoch (start time of the generator) distinguishes the restarts, and every thread has
+ * its own slot and counter, so generating an id does not touch any shared state.
+ */
+public class SequenceMessageIdGenerator implements MessageIdGenerator {
+
+    private final String prefix;
+    private final AtomicInteger threadSlots = new AtomicInteger();
+    private final ThreadLocal<ThreadSequence> sequences;
+
+    /**
+     * Creates a generator with a random node id
+     */
+    public SequenceMessageIdGenerator() {
+        this(Integer.toString(new SecureRandom().nextInt() & Integer.MAX_VALUE, 36));
+    }
+
+    /**
+     * @param node unique id of this server (e.g. host name or instance id)
+     */
+    public SequenceMessageIdGenerator(String node) {
+        this.prefix = "m-" + node + "-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+        this.sequences = ThreadLocal.withInitial(
+                () -> new ThreadSequence(prefix + Integer.toString(threadSlots.getAndIncrement(), 36) + "-"));
+    }
+
+    @Override
+    public String nextId() {
+        return sequences.get().next();
+    }
+
+    /**
+     * Counter of a thread
+     */
+    private static class ThreadSequence {
+
+        private final String prefix;
+        private long counter = 0;
+
+        ThreadSequence(String prefix) {
+            this.prefix = prefix;
+        }
+
+        String next() {
+            return new StringBuilder(prefix.length() + 13).append(prefix).append(Long.toString(counter++, 36))
+                    .toString();
+        }
+    }
+
+}
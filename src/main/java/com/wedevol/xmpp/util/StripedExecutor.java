@@ -0,0 +1,132 @@
+package com.wedevol.xmpp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of single-thread workers where every task goes to the worker of its key (stripe), so the tasks of the same key
+ * run one at a time and in submission order, while different keys run in parallel. Every worker has a bounded queue:
+ * when it is full the submitter waits for room (the task is never dropped nor run out of order) and the wait is counted
+ * as a saturation.
+ */
+public class StripedExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(StripedExecutor.class);
+
+    private final List<BlockingQueue<Runnable>> queues;
+    private final List<Thread> workers;
+    private volatile boolean isShutdown = false;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder saturated = new LongAdder();
+
+    public StripedExecutor(String name, int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("The threads and the queue capacity must be greater than zero");
+        }
+        this.queues = new ArrayList<>(threads);
+        this.workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(queueCapacity);
+            queues.add(queue);
+            final Thread thread = new Thread(() -> work(queue), name + "-" + i);
+            thread.setDaemon(true);
+            workers.add(thread);
+            thread.start();
+        }
+    }
+
+    private void work(BlockingQueue<Runnable> queue) {
+        while (!isShutdown) {
+            final Runnable task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            active.incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Error running a striped task. Error: {}", e.getMessage(), e);
+            } finally {
+                active.decrementAndGet();
+                executed.increment();
+            }
+        }
+    }
+
+    /**
+     * Queues the task in the worker of the key, waiting for room if its queue is full
+     *
+     * @throws RejectedExecutionException if the executor is shut down
+     */
+    public void execute(Object key, Runnable task) {
+        if (isShutdown) {
+            throw new RejectedExecutionException("The striped executor is shut down");
+        }
+        final int stripe = Math.floorMod(key != null ? key.hashCode() : 0, queues.size());
+        final BlockingQueue<Runnable> queue = queues.get(stripe);
+        if (queue.offer(task)) {
+            return;
+        }
+        saturated.increment();
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("Interrupted while waiting for room in a striped queue. Running the task in the caller.");
+            task.run();
+        }
+    }
+
+    /**
+     * Stops the workers. The running tasks are interrupted and the queued ones are dropped.
+     */
+    public void shutdown() {
+        isShutdown = true;
+        workers.forEach(Thread::interrupt);
+        queues.forEach(BlockingQueue::clear);
+    }
+
+    public int getThreadCount() {
+        return queues.size();
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Runnable> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of workers running a task
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getExecutedCount() {
+        return executed.sum();
+    }
+
+    /**
+     * @return the number of submissions that found the queue of their worker full and had to wait
+     */
+    public long getSaturatedCount() {
+        return saturated.sum();
+    }
+
+}
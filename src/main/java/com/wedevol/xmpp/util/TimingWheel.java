@@ -0,0 +1,218 @@
+package com.wedevol.xmpp.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel for a large number of short timeouts (e.g. the ack deadline of every downstream message).
+ * Scheduling and cancelling a timeout are O(1) and every tick only visits the bucket of the current tick, so the cost
+ * of firing the timeouts is O(1) amortized regardless of how many of them are pending. The timeouts fire with a
+ * precision of one tick.
+ * <p>
+ * As in Netty's HashedWheelTimer, only the tick task touches the buckets: the new and the cancelled timeouts are
+ * queued and moved into (or out of) their buckets at the start of the next tick, so a timeout is never added to the
+ * bucket being visited and a cancelled one leaves the wheel within a tick instead of at its deadline.
+ */
+public class TimingWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickDuration; // in millis
+    private final int mask;
+    private final Bucket[] buckets;
+    private final AtomicLong currentTick = new AtomicLong();
+
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder pending = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public TimingWheel(long tickDuration, int wheelSize) {
+        if (tickDuration < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("The tick duration and the wheel size must be greater than zero");
+        }
+        this.tickDuration = tickDuration;
+        // round the wheel size up to a power of two to compute the bucket with a mask
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Starts ticking in the given scheduler
+     */
+    public void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(this::advance, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules the task to run after the delay
+     */
+    public Timeout schedule(Runnable task, long delayInMillis) {
+        final long ticks = Math.max(1, (delayInMillis + tickDuration - 1) / tickDuration);
+        final Timeout timeout = new Timeout(this, task, currentTick.get() + ticks);
+        pending.increment();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Moves the wheel one tick and runs the due tasks of the new tick's bucket. Only called by the tick task.
+     */
+    void advance() {
+        final long tick = currentTick.incrementAndGet();
+        removeCancelledTimeouts();
+        transferNewTimeouts(tick);
+        final Bucket bucket = buckets[(int) (tick & mask)];
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) { // the ones of the next rounds stay
+                bucket.remove(timeout);
+                if (timeout.expire()) {
+                    pending.decrement();
+                    expired.increment();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Error running a timing wheel task. Error: {}", e.getMessage());
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+            pending.decrement();
+        }
+    }
+
+    /**
+     * Puts the new timeouts in their buckets. A timeout scheduled while the previous tick was running is due in this
+     * tick at the earliest.
+     */
+    private void transferNewTimeouts(long tick) {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue; // counted when its cancellation is processed
+            }
+            timeout.deadlineTick = Math.max(timeout.deadlineTick, tick);
+            buckets[(int) (timeout.deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * @return the number of scheduled timeouts that have not fired nor been removed after a cancellation yet
+     */
+    public long getPendingCount() {
+        return pending.sum();
+    }
+
+    /**
+     * @return the number of timeouts that fired
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Doubly linked list of the timeouts of a bucket, only used by the tick task
+     */
+    private static class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * A scheduled task of the wheel
+     */
+    public static class Timeout {
+
+        private static final int SCHEDULED = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(SCHEDULED);
+
+        // only used by the tick task
+        private long deadlineTick;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels the task if it did not run yet. It is removed from the wheel at the next tick.
+         */
+        public void cancel() {
+            if (state.compareAndSet(SCHEDULED, CANCELLED)) {
+                wheel.cancelledTimeouts.add(this);
+            }
+        }
+
+        private boolean expire() {
+            return state.compareAndSet(SCHEDULED, EXPIRED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+}
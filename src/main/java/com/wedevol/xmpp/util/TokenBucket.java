@@ -0,0 +1,59 @@
+package com.wedevol.xmpp.util;
+
+/**
+ * Thread safe token bucket: it holds up to the burst of tokens and is refilled at the given rate
+ */
+public class TokenBucket {
+
+    private final double ratePerSecond;
+    private final int burst;
+
+    private double tokens;
+    private long updatedAt;
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate and the burst must be greater than zero");
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.updatedAt = Util.getCurrentTimeMillis();
+    }
+
+    /**
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Takes a token, even if the bucket is empty: the next callers wait behind it
+     *
+     * @return 0 if the token was available, or the time to wait in millis until it is (the token is already taken)
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / ratePerSecond);
+    }
+
+    private void refill() {
+        final long now = Util.getCurrentTimeMillis();
+        if (now > updatedAt) {
+            tokens = Math.min(burst, tokens + ratePerSecond * (now - updatedAt) / 1000);
+            updatedAt = now;
+        }
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+}
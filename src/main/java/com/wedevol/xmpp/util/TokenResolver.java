@@ -0,0 +1,17 @@
+package com.wedevol.xmpp.util;
+
+import java.util.List;
+
+/**
+ * Resolver of the FCM registration tokens of a user (one per device), e.g. from a database. It is called for every
+ * relayed message, so a slow resolver should be wrapped in a {@link CachingTokenResolver}. Implementations must be
+ * thread safe.
+ */
+public interface TokenResolver {
+
+    /**
+     * @return the registration tokens of the user, empty if the user is unknown or has no device
+     */
+    List<String> resolve(String userId);
+
+}
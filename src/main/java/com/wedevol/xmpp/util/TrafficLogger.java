@@ -0,0 +1,59 @@
+package com.wedevol.xmpp.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which stanzas are logged. Logging every packet means serializing it to XML, so in the OFF mode the callers
+ * must not build any string: check {@link #shouldLog()} before logging.
+ */
+public class TrafficLogger {
+
+    /**
+     * Traffic logging modes
+     */
+    public enum Mode {
+        OFF, SAMPLED, FULL
+    }
+
+    private volatile Mode mode = Mode.FULL;
+    private volatile int sampleRate = 1;
+
+    /**
+     * @return true if the current stanza must be logged (always in FULL mode, 1 in N stanzas in SAMPLED mode)
+     */
+    public boolean shouldLog() {
+        final Mode current = mode;
+        if (current == Mode.OFF) {
+            return false;
+        }
+        if (current == Mode.FULL) {
+            return true;
+        }
+        // random instead of a shared counter to avoid contention between the stanza threads
+        return ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Logs one in every sampleRate stanzas
+     */
+    public void setSampled(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("The sample rate must be greater than zero");
+        }
+        this.sampleRate = sampleRate;
+        this.mode = Mode.SAMPLED;
+    }
+
+}
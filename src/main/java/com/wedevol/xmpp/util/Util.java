@@ -1,10 +1,5 @@
 package com.wedevol.xmpp.util;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Locale;
-import java.util.UUID;
-
 /**
  * Util class for constants and generic methods
  */
@@ -27,17 +22,24 @@ public class Util {
     public static final String PAYLOAD_ATTRIBUTE_ACTION = "action";
     public static final String PAYLOAD_ATTRIBUTE_RECIPIENT = "recipient";
 
+    // For the error codes of the NACK results given by the client itself (not by FCM)
+    public static final String ERROR_COLLAPSED = "COLLAPSED";
+    public static final String ERROR_DEAD_TOKEN = "DEAD_TOKEN";
+
+    private static volatile MessageIdGenerator messageIdGenerator = new SequenceMessageIdGenerator();
+
     /**
-     * Returns a random message id to uniquely identify a message
+     * Returns a message id to uniquely identify a message
      */
     public static String getUniqueMessageId() {
-        // TODO replace with your own random message ID
-        LocalDateTime now = LocalDateTime.now();
-        final String formatted = now.format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.ENGLISH));
-        UUID randomUUID = UUID.randomUUID();
-        final String messageId =
-                new StringBuilder().append("m-").append(formatted).append("-").append(randomUUID.toString()).toString();
-        return messageId;
+        return messageIdGenerator.nextId();
+    }
+
+    /**
+     * Replaces the message id generator (e.g. with one that uses your own node id)
+     */
+    public static void setMessageIdGenerator(MessageIdGenerator generator) {
+        messageIdGenerator = generator;
     }
 
     public static Long getCurrentUnixTime() {
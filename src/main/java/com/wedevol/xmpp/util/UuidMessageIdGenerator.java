@@ -0,0 +1,23 @@
+package com.wedevol.xmpp.util;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Message id generator with the format m-{yyyyMMddHHmmss}-{random UUID}. This was the original implementation; the
+ * random UUIDs come from a shared SecureRandom, which contends across threads.
+ */
+public class UuidMessageIdGenerator implements MessageIdGenerator {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.ENGLISH);
+
+    @Override
+    public String nextId() {
+        final String formatted = LocalDateTime.now().format(FORMATTER);
+        final UUID randomUUID = UUID.randomUUID();
+        return new StringBuilder().append("m-").append(formatted).append("-").append(randomUUID.toString()).toString();
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.wedevol.xmpp.simulator;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.wedevol.xmpp.bean.CcsOutMessage;
+import com.wedevol.xmpp.bean.MessagePriority;
+import com.wedevol.xmpp.server.CcsClient;
+import com.wedevol.xmpp.server.DispatchStrategy;
+import com.wedevol.xmpp.server.FlowControlMode;
+import com.wedevol.xmpp.util.DefaultMetricsRegistry;
+import com.wedevol.xmpp.util.LatencyHistogram;
+import com.wedevol.xmpp.util.MessageJournal;
+import com.wedevol.xmpp.util.MessageMapper;
+import com.wedevol.xmpp.util.RetryScheduler;
+import com.wedevol.xmpp.util.TrafficLogger;
+import com.wedevol.xmpp.util.Util;
+
+/**
+ * Local load test of the {@link CcsClient} against an in-process {@link CcsSimulator}. It sends a number of downstream
+ * messages asynchronously, optionally injects a connection draining or a socket drop in the middle of the run, and
+ * reports the throughput and the results.
+ * <p>
+ * Arguments (all optional): messages=100000 pool=1 dispatch=LEAST_IN_FLIGHT window=100 flowControl=QUEUE latency=0
+ * maxLatency=0 drainAt=N dropAt=N nack.ERROR_CODE=RATE highEvery=N (every Nth message is sent with high priority)
+ * devices=N (number of recipients, one per message by default) collapseKey=KEY receipts=false deliveryLatency=0
+ * maxDeliveryLatency=0 retryRate=N (maximum retries per second of the messages nacked with a server error)
+ * spillBudget=BYTES (heap budget of the pending messages, the rest is spilled to a temporary file) throttleRetries=N
+ * (retries of the messages nacked because their recipient is over its rate) journal=false (journal the messages in a
+ * temporary file)
+ *
+ * @author Charz++
+ */
+public class CcsLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(CcsLoadTest.class);
+
+    private static final long CONNECT_TIMEOUT_IN_MILLI = 10000;
+    private static final long RECEIPTS_TIMEOUT_IN_MILLI = 60000;
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid argument (expected key=value): " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        final int messages = Integer.parseInt(options.getOrDefault("messages", "100000"));
+        final long drainAt = Long.parseLong(options.getOrDefault("drainAt", "-1"));
+        final long dropAt = Long.parseLong(options.getOrDefault("dropAt", "-1"));
+        final int highEvery = Integer.parseInt(options.getOrDefault("highEvery", "0"));
+        final int devices = Integer.parseInt(options.getOrDefault("devices", String.valueOf(messages)));
+        final String collapseKey = options.get("collapseKey");
+
+        final CcsSimulator simulator = new CcsSimulator(0);
+        final long latency = Long.parseLong(options.getOrDefault("latency", "0"));
+        final long maxLatency = Long.parseLong(options.getOrDefault("maxLatency", String.valueOf(latency)));
+        simulator.setAckLatency(latency, maxLatency, TimeUnit.MILLISECONDS);
+        final long deliveryLatency = Long.parseLong(options.getOrDefault("deliveryLatency", "0"));
+        simulator.setDeliveryLatency(deliveryLatency,
+                Long.parseLong(options.getOrDefault("maxDeliveryLatency", String.valueOf(deliveryLatency))),
+                TimeUnit.MILLISECONDS);
+        final boolean receipts = Boolean.parseBoolean(options.getOrDefault("receipts", "false"));
+        options.forEach((key, value) -> {
+            if (key.startsWith("nack.")) {
+                simulator.setNackRate(key.substring("nack.".length()), Double.parseDouble(value));
+            }
+        });
+        simulator.start();
+
+        final CcsClient client = new CcsClient("load-test", "load-test-key", false);
+        client.setHost("localhost");
+        client.setPort(simulator.getPort());
+        client.setTlsEnabled(false);
+        client.setPoolSize(Integer.parseInt(options.getOrDefault("pool", "1")));
+        client.setDispatchStrategy(DispatchStrategy.valueOf(options.getOrDefault("dispatch", "LEAST_IN_FLIGHT")));
+        client.setWindowCapacity(Integer.parseInt(options.getOrDefault("window", "100")));
+        client.setFlowControlMode(FlowControlMode.valueOf(options.getOrDefault("flowControl", "QUEUE")));
+        if (options.containsKey("spillBudget")) {
+            final Path spillPath = Files.createTempFile("ccs-pending", ".spill");
+            client.setPendingSpill(spillPath, Long.parseLong(options.get("spillBudget")));
+        }
+        if (options.containsKey("retryRate")) {
+            client.setServerErrorRetries(3, 1000, Double.parseDouble(options.get("retryRate")));
+        }
+        if (Boolean.parseBoolean(options.getOrDefault("journal", "false"))) {
+            final Path journalPath = Files.createTempFile("ccs-journal", ".wal");
+            journalPath.toFile().deleteOnExit();
+            client.setJournalPath(journalPath);
+        }
+        if (options.containsKey("throttleRetries")) {
+            client.setThrottleRetries(Integer.parseInt(options.get("throttleRetries")), 1000);
+        }
+        client.getTrafficLogger().setMode(TrafficLogger.Mode.OFF);
+        client.connect();
+        waitUntil(client::isAlive, CONNECT_TIMEOUT_IN_MILLI, "the client connection");
+
+        final Map<String, String> dataPayload = new HashMap<>();
+        dataPayload.put(Util.PAYLOAD_ATTRIBUTE_MESSAGE, "This is a load test message");
+        final LongAdder acked = new LongAdder();
+        final LongAdder nacked = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder timedOut = new LongAdder();
+        final CompletableFuture<?>[] results = new CompletableFuture<?>[messages];
+        final LatencyHistogram highResultLatencies = new LatencyHistogram();
+        final LatencyHistogram normalResultLatencies = new LatencyHistogram();
+
+        logger.info("Sending {} messages ...", messages);
+        final long start = System.nanoTime();
+        int maxSpilled = 0;
+        for (int i = 0; i < messages; i++) {
+            if (i % 1000 == 0) {
+                maxSpilled = Math.max(maxSpilled, client.getPendingSpilledCount());
+            }
+            if (i == drainAt) {
+                logger.info("Injecting connection draining at message {}", i);
+                simulator.injectConnectionDraining();
+            }
+            if (i == dropAt) {
+                logger.info("Dropping the connections at message {}", i);
+                simulator.dropConnections();
+            }
+            final String messageId = Util.getUniqueMessageId();
+            final CcsOutMessage message = new CcsOutMessage("device-" + i % devices, messageId, dataPayload);
+            message.setCollapseKey(collapseKey);
+            message.setDeliveryReceiptRequested(receipts ? Boolean.TRUE : null);
+            final MessagePriority priority =
+                    highEvery > 0 && i % highEvery == 0 ? MessagePriority.HIGH : MessagePriority.NORMAL;
+            final LatencyHistogram resultLatencies =
+                    priority == MessagePriority.HIGH ? highResultLatencies : normalResultLatencies;
+            final long sentAt = System.nanoTime();
+            results[i] = client.sendAsync(messageId, MessageMapper.toJsonString(message), priority)
+                    .whenComplete((result, error) -> {
+                        resultLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+                        if (error != null) {
+                            failed.increment();
+                            if (error instanceof TimeoutException) {
+                                timedOut.increment();
+                            }
+                        } else if (result.isAcked()) {
+                            acked.increment();
+                        } else {
+                            nacked.increment();
+                        }
+                    });
+        }
+        final long sent = System.nanoTime();
+        CompletableFuture.allOf(results).handle((result, error) -> null).join();
+        final long end = System.nanoTime();
+
+        final double sendSeconds = (sent - start) / 1e9;
+        final double totalSeconds = (end - start) / 1e9;
+        final RetryScheduler retries = client.getRetryScheduler();
+        logger.info("Messages: {} | sent in {} s | answered in {} s | throughput: {} msg/s", messages,
+                String.format("%.2f", sendSeconds), String.format("%.2f", totalSeconds),
+                String.format("%.0f", messages / totalSeconds));
+        logger.info("Acked: {} | nacked: {} | failed: {} (timed out: {})", acked.sum(), nacked.sum(), failed.sum(),
+                timedOut.sum());
+        logger.info("Retries: {} | exhausted: {} | simulator connections: {} | downstream received: {}",
+                retries.getRetryCount(), retries.getExhaustedCount(), simulator.getConnectionsAccepted(),
+                simulator.getDownstreamReceived());
+        if (client.getMetricsRegistry() instanceof DefaultMetricsRegistry) {
+            final LatencyHistogram latencies =
+                    ((DefaultMetricsRegistry) client.getMetricsRegistry()).getHistogram("downstream.ack_latency_ms");
+            logger.info("Ack latency (ms) -> p50: {} | p99: {} | max: {}", latencies.getValueAtPercentile(50),
+                    latencies.getValueAtPercentile(99), latencies.getMax());
+            final DefaultMetricsRegistry registry = (DefaultMetricsRegistry) client.getMetricsRegistry();
+            logger.info("Collapsed: {} | rejected to dead tokens: {} | dead tokens: {}",
+                    registry.getCounter("downstream.collapsed"), registry.getCounter("downstream.dead_token_rejected"),
+                    client.getDeadTokenFilter().size());
+            logger.info("Throttled by FCM: {} | delayed by the rate limiter: {} | rate limited recipients: {}",
+                    registry.getCounter("downstream.throttled"), registry.getCounter("downstream.rate_limited"),
+                    client.getRateLimiter().size());
+            logger.info("Max pending messages spilled: {} | pending on the heap (bytes): {}", maxSpilled,
+                    client.getPendingHeapBytes());
+            logger.info("Server error retries: {} | delayed by the retry rate: {} | dead lettered: {}",
+                    registry.getCounter("downstream.server_error_retries"),
+                    registry.getCounter("downstream.server_error_retries_delayed"),
+                    registry.getCounter("downstream.dead_lettered"));
+            logger.info("Counted as sent: {} | unanswered in the journal: {}", registry.getCounter("downstream.sent"),
+                    client.getJournal().map(MessageJournal::getLiveCount).orElse(0));
+        }
+        if (highEvery > 0) {
+            logger.info("Result latency (ms) -> high p50: {} p99: {} | normal p50: {} p99: {}",
+                    highResultLatencies.getValueAtPercentile(50), highResultLatencies.getValueAtPercentile(99),
+                    normalResultLatencies.getValueAtPercentile(50), normalResultLatencies.getValueAtPercentile(99));
+        }
+
+        if (receipts) {
+            waitUntil(() -> client.getDeliveryTracker().size() == 0, RECEIPTS_TIMEOUT_IN_MILLI, "the receipts");
+            final DefaultMetricsRegistry registry = (DefaultMetricsRegistry) client.getMetricsRegistry();
+            final LatencyHistogram delivery = registry.getHistogram("receipts.send_to_delivery_ms");
+            logger.info("Receipts: {} | untracked: {} | send to delivery (ms) -> p50: {} | p99: {} | max: {}",
+                    registry.getCounter("receipts.received"), registry.getCounter("receipts.untracked"),
+                    delivery.getValueAtPercentile(50), delivery.getValueAtPercentile(99), delivery.getMax());
+        }
+
+        client.disconnectAll();
+        simulator.stop();
+    }
+
+    private static void waitUntil(BooleanSupplier condition, long timeout, String what) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Timed out waiting for " + what + " after " + timeout + " ms");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+}
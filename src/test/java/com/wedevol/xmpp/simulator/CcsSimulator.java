@@ -0,0 +1,380 @@
+package com.wedevol.xmpp.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.wedevol.xmpp.util.Util;
+
+/**
+ * Local stand-in of FCM Cloud Connection Server to exercise the {@link com.wedevol.xmpp.server.CcsClient} without the
+ * real server, e.g. to load test the throughput and the recovery. It speaks the CCS dialect over plain TCP (no TLS):
+ * SASL PLAIN, resource binding, pings and the <code>gcm</code> extension with ack, nack, receipt, control and upstream
+ * messages.
+ * <p>
+ * The faults are configurable: the ack latency, the nack rate per error code, the CONNECTION_DRAINING control message
+ * (followed by the close of the connection) and the socket drops. The client must be configured with
+ * {@code setHost}, {@code setPort} and {@code setTlsEnabled(false)}.
+ *
+ * @author Charz++
+ */
+public class CcsSimulator {
+
+    private static final Logger logger = LoggerFactory.getLogger(CcsSimulator.class);
+
+    private static final long DEFAULT_DRAIN_CLOSE_DELAY_IN_MILLI = 1000;
+
+    private final int requestedPort;
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+    private String apiKey = null;
+    private volatile long minAckLatency = 0;
+    private volatile long maxAckLatency = 0;
+    private volatile long minDeliveryLatency = 0;
+    private volatile long maxDeliveryLatency = 0;
+    private volatile long drainCloseDelay = DEFAULT_DRAIN_CLOSE_DELAY_IN_MILLI;
+
+    // probability of answering a downstream message with a nack, per error code
+    private final Map<String, Double> nackRates = new ConcurrentHashMap<>();
+
+    private final List<SimulatorSession> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger sessionIds = new AtomicInteger();
+
+    // delayed acks, nacks, receipts and closes of the draining connections
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2, runnable -> {
+        final Thread thread = new Thread(runnable, "ccs-simulator-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder downstreamReceived = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+    private final Map<String, LongAdder> nacksSent = new ConcurrentHashMap<>();
+    private final LongAdder receiptsSent = new LongAdder();
+    private final LongAdder upstreamSent = new LongAdder();
+    private final LongAdder acksReceived = new LongAdder();
+
+    /**
+     * @param port the port to listen on, or 0 for any free port (see {@link #getPort()})
+     */
+    public CcsSimulator(int port) {
+        this.requestedPort = port;
+    }
+
+    /**
+     * Opens the server socket and starts accepting connections in a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+        running = true;
+        final Thread acceptor = new Thread(this::acceptConnections, "ccs-simulator-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("CCS simulator listening on port {}", getPort());
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connectionsAccepted.increment();
+                final SimulatorSession session = new SimulatorSession(this, socket, sessionIds.incrementAndGet());
+                sessions.add(session);
+                session.start();
+            } catch (SocketException e) {
+                // the server socket was closed by stop()
+            } catch (IOException e) {
+                logger.error("Error accepting a simulator connection. Error: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the server socket and all the connections
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.error("Error closing the simulator socket. Error: {}", e.getMessage());
+        }
+        sessions.forEach(SimulatorSession::close);
+        scheduler.shutdownNow();
+        logger.info("CCS simulator stopped");
+    }
+
+    /**
+     * @return the port the simulator listens on
+     */
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : requestedPort;
+    }
+
+    /**
+     * Sets the password (server key) required by the SASL authentication. By default any password is accepted.
+     */
+    public void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Sets the time between a downstream message and its ack or nack. Every message gets a random latency between the
+     * minimum and the maximum. By default the messages are answered immediately.
+     */
+    public void setAckLatency(long minAckLatency, long maxAckLatency, TimeUnit unit) {
+        if (minAckLatency < 0 || maxAckLatency < minAckLatency) {
+            throw new IllegalArgumentException("The ack latency must be a positive range");
+        }
+        this.minAckLatency = unit.toMillis(minAckLatency);
+        this.maxAckLatency = unit.toMillis(maxAckLatency);
+    }
+
+    /**
+     * Sets the time between the ack of a downstream message that requested a delivery receipt and its receipt. By
+     * default the receipt is sent right after the ack.
+     */
+    public void setDeliveryLatency(long minDeliveryLatency, long maxDeliveryLatency, TimeUnit unit) {
+        if (minDeliveryLatency < 0 || maxDeliveryLatency < minDeliveryLatency) {
+            throw new IllegalArgumentException("The delivery latency must be a positive range");
+        }
+        this.minDeliveryLatency = unit.toMillis(minDeliveryLatency);
+        this.maxDeliveryLatency = unit.toMillis(maxDeliveryLatency);
+    }
+
+    /**
+     * Sets the probability (0 to 1) of answering a downstream message with a nack of the given error code (e.g.
+     * SERVICE_UNAVAILABLE, DEVICE_UNREGISTERED). A rate of 0 removes the error code.
+     */
+    public void setNackRate(String errorCode, double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("The nack rate must be between 0 and 1");
+        }
+        if (rate == 0) {
+            nackRates.remove(errorCode);
+        } else {
+            nackRates.put(errorCode, rate);
+        }
+    }
+
+    /**
+     * Sets the time between the CONNECTION_DRAINING control message and the close of the connection
+     */
+    public void setDrainCloseDelay(long drainCloseDelay, TimeUnit unit) {
+        this.drainCloseDelay = unit.toMillis(drainCloseDelay);
+    }
+
+    /**
+     * Sends the CONNECTION_DRAINING control message to all the authenticated connections. Their next downstream
+     * messages are nacked with CONNECTION_DRAINING and they are closed after the drain close delay.
+     */
+    public void injectConnectionDraining() {
+        sessions.stream().filter(SimulatorSession::isBound).forEach(SimulatorSession::drain);
+    }
+
+    /**
+     * Sends the CONNECTION_DRAINING control message to the n-th authenticated connection (0 based), if it exists
+     */
+    public void injectConnectionDraining(int sessionIndex) {
+        sessions.stream().filter(SimulatorSession::isBound).skip(sessionIndex).findFirst()
+                .ifPresent(SimulatorSession::drain);
+    }
+
+    /**
+     * Closes the sockets of all the connections abruptly, without closing the XMPP stream
+     */
+    public void dropConnections() {
+        sessions.forEach(SimulatorSession::close);
+    }
+
+    /**
+     * Sends an upstream message from a device through one of the authenticated connections
+     *
+     * @return the message id, or null if there is no authenticated connection
+     */
+    public String injectUpstream(String from, Map<String, String> dataPayload) {
+        return injectUpstream(Util.getUniqueMessageId(), from, dataPayload);
+    }
+
+    /**
+     * Sends an upstream message with the given id, e.g. to deliver again a message as FCM does when the ack is lost
+     *
+     * @return the message id, or null if there is no authenticated connection
+     */
+    public String injectUpstream(String messageId, String from, Map<String, String> dataPayload) {
+        final SimulatorSession[] bound =
+                sessions.stream().filter(SimulatorSession::isBound).toArray(SimulatorSession[]::new);
+        if (bound.length == 0) {
+            return null;
+        }
+        bound[ThreadLocalRandom.current().nextInt(bound.length)].sendUpstream(messageId, from, dataPayload);
+        return messageId;
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    public long getDownstreamReceived() {
+        return downstreamReceived.sum();
+    }
+
+    public long getAcksSent() {
+        return acksSent.sum();
+    }
+
+    /**
+     * @return the number of nacks sent for the given error code
+     */
+    public long getNacksSent(String errorCode) {
+        final LongAdder counter = nacksSent.get(errorCode);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    public long getReceiptsSent() {
+        return receiptsSent.sum();
+    }
+
+    public long getUpstreamSent() {
+        return upstreamSent.sum();
+    }
+
+    /**
+     * @return the number of acks sent by the client for the upstream messages and receipts
+     */
+    public long getAcksReceived() {
+        return acksReceived.sum();
+    }
+
+    String getApiKey() {
+        return apiKey;
+    }
+
+    long nextAckLatency() {
+        final long min = minAckLatency;
+        final long max = maxAckLatency;
+        return max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+    }
+
+    long nextDeliveryLatency() {
+        final long min = minDeliveryLatency;
+        final long max = maxDeliveryLatency;
+        return max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+    }
+
+    long getDrainCloseDelay() {
+        return drainCloseDelay;
+    }
+
+    /**
+     * @return the error code of the nack for the next downstream message, or null to ack it
+     */
+    String nextNackErrorCode() {
+        if (nackRates.isEmpty()) {
+            return null;
+        }
+        final double value = ThreadLocalRandom.current().nextDouble();
+        double cumulative = 0;
+        for (Map.Entry<String, Double> entry : nackRates.entrySet()) {
+            cumulative += entry.getValue();
+            if (value < cumulative) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    ScheduledThreadPoolExecutor getScheduler() {
+        return scheduler;
+    }
+
+    void onDownstreamReceived() {
+        downstreamReceived.increment();
+    }
+
+    void onAckSent() {
+        acksSent.increment();
+    }
+
+    void onNackSent(String errorCode) {
+        nacksSent.computeIfAbsent(errorCode, key -> new LongAdder()).increment();
+    }
+
+    void onReceiptSent() {
+        receiptsSent.increment();
+    }
+
+    void onUpstreamSent() {
+        upstreamSent.increment();
+    }
+
+    void onAckReceived() {
+        acksReceived.increment();
+    }
+
+    void onSessionClosed(SimulatorSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * Starts a standalone simulator. Arguments (all optional): port=5236 latency=0 maxLatency=0 deliveryLatency=0
+     * maxDeliveryLatency=0 apiKey=KEY nack.ERROR_CODE=RATE (e.g. nack.SERVICE_UNAVAILABLE=0.01)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid argument (expected key=value): " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        final CcsSimulator simulator =
+                new CcsSimulator(Integer.parseInt(options.getOrDefault("port", String.valueOf(Util.FCM_PORT))));
+        final long latency = Long.parseLong(options.getOrDefault("latency", "0"));
+        final long maxLatency = Long.parseLong(options.getOrDefault("maxLatency", String.valueOf(latency)));
+        simulator.setAckLatency(latency, maxLatency, TimeUnit.MILLISECONDS);
+        final long deliveryLatency = Long.parseLong(options.getOrDefault("deliveryLatency", "0"));
+        simulator.setDeliveryLatency(deliveryLatency,
+                Long.parseLong(options.getOrDefault("maxDeliveryLatency", String.valueOf(deliveryLatency))),
+                TimeUnit.MILLISECONDS);
+        simulator.setApiKey(options.get("apiKey"));
+        options.forEach((key, value) -> {
+            if (key.startsWith("nack.")) {
+                simulator.setNackRate(key.substring("nack.".length()), Double.parseDouble(value));
+            }
+        });
+        simulator.start();
+        new CountDownLatch(1).await();
+    }
+
+}
@@ -0,0 +1,394 @@
+package com.wedevol.xmpp.simulator;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.wedevol.xmpp.util.Util;
+
+/**
+ * One client connection of the {@link CcsSimulator}. A thread reads the XMPP stream of the client and answers it: the
+ * stream negotiation (SASL PLAIN, stream restart and resource binding), the IQs (e.g. pings) and the downstream
+ * messages, which are acked or nacked after the configured latency.
+ */
+class SimulatorSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulatorSession.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String FCM_DOMAIN = Util.FCM_SERVER_AUTH_CONNECTION;
+    private static final String SIMULATOR_CATEGORY = "com.wedevol.simulator";
+    private static final long STREAM_CLOSE_TIMEOUT_IN_MILLI = 2000;
+
+    private final CcsSimulator simulator;
+    private final Socket socket;
+    private final int sessionId;
+    private final Writer writer;
+    private volatile boolean streamOpened = false;
+    private volatile String username = null;
+    private volatile boolean bound = false;
+    private volatile boolean draining = false;
+    private final AtomicBoolean streamClosed = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    SimulatorSession(CcsSimulator simulator, Socket socket, int sessionId) throws IOException {
+        this.simulator = simulator;
+        this.socket = socket;
+        this.sessionId = sessionId;
+        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    void start() {
+        final Thread reader = new Thread(this::readStream, "ccs-simulator-session-" + sessionId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readStream() {
+        // a synthetic root element, so the stanzas that a reconnecting client writes before its stream header do not
+        // end the document
+        final InputStream root = new ByteArrayInputStream("<simulator>".getBytes(StandardCharsets.UTF_8));
+        try (Reader reader = new InputStreamReader(new SequenceInputStream(root, socket.getInputStream()),
+                StandardCharsets.UTF_8)) {
+            final XmlPullParser parser = PacketParserUtils.newXmppParser(reader);
+            int event = parser.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    handleElement(parser);
+                } else if (event == XmlPullParser.END_TAG && "stream".equals(parser.getName())) {
+                    // closed by the client
+                    if (streamClosed.compareAndSet(false, true)) {
+                        send("</stream:stream>");
+                    }
+                    break;
+                }
+                event = parser.next();
+            }
+        } catch (XmlPullParserException | IOException e) {
+            if (!closed.get()) {
+                logger.info("[sim-{}] Connection lost. Error: {}", sessionId, e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void handleElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+        if ("simulator".equals(parser.getName())) {
+            return; // synthetic root
+        }
+        if (!streamOpened && !"stream".equals(parser.getName())) {
+            logger.debug("[sim-{}] Ignoring a {} element received before the stream header", sessionId,
+                    parser.getName());
+            skipElement(parser);
+            return;
+        }
+        switch (parser.getName()) {
+            case "stream":
+                // initial stream or restart after the authentication: the stanzas are its children
+                openStream(parser.getAttributeValue("", "to"));
+                break;
+            case "auth":
+                authenticate(parser.nextText());
+                break;
+            case "iq":
+                handleIq(parser);
+                break;
+            case "message":
+                handleMessage(parser);
+                break;
+            default:
+                skipElement(parser); // presence and unsupported elements
+        }
+    }
+
+    private void openStream(String to) {
+        streamOpened = true;
+        final String domain = to != null ? to : FCM_DOMAIN;
+        final StringBuilder xml = new StringBuilder();
+        xml.append("<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'");
+        xml.append(" id='sim-").append(sessionId).append("' from='")
+                .append(StringUtils.escapeForXmlAttributeApos(domain)).append("' version='1.0'>");
+        xml.append("<stream:features>");
+        if (username != null) {
+            xml.append("<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>");
+        } else {
+            xml.append("<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>");
+            xml.append("<mechanism>PLAIN</mechanism></mechanisms>");
+        }
+        xml.append("</stream:features>");
+        send(xml.toString());
+    }
+
+    /**
+     * SASL PLAIN: base64 of [authzid] NUL authcid NUL password
+     */
+    private void authenticate(String initialResponse) {
+        final String[] credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(initialResponse.trim()), StandardCharsets.UTF_8)
+                    .split("\u0000", -1);
+        } catch (IllegalArgumentException e) {
+            send("<failure xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><malformed-request/></failure>");
+            return;
+        }
+        final String apiKey = simulator.getApiKey();
+        if (credentials.length != 3 || (apiKey != null && !apiKey.equals(credentials[2]))) {
+            logger.info("[sim-{}] Authentication failed", sessionId);
+            send("<failure xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><not-authorized/></failure>");
+            return;
+        }
+        username = credentials[1];
+        logger.info("[sim-{}] User authenticated: {}", sessionId, username);
+        send("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+    }
+
+    private void handleIq(XmlPullParser parser) throws XmlPullParserException, IOException {
+        final String id = parser.getAttributeValue("", "id");
+        final String type = parser.getAttributeValue("", "type");
+        final String to = parser.getAttributeValue("", "to");
+        final int depth = parser.getDepth();
+        boolean bind = false;
+        String resource = null;
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+            if (event == XmlPullParser.START_TAG) {
+                if ("bind".equals(parser.getName())) {
+                    bind = true;
+                } else if (bind && "resource".equals(parser.getName())) {
+                    resource = parser.nextText();
+                }
+            }
+        }
+        final String idAttribute = id != null ? " id='" + StringUtils.escapeForXmlAttributeApos(id) + "'" : "";
+        if (bind) {
+            final String jid = username + "/" + (resource != null ? resource : "sim-" + sessionId);
+            send("<iq type='result'" + idAttribute + "><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>"
+                    + StringUtils.escapeForXmlText(jid) + "</jid></bind></iq>");
+            bound = true;
+        } else if ("get".equals(type) || "set".equals(type)) {
+            // e.g. pings: an empty result from the entity that was queried
+            final String from = to != null ? " from='" + StringUtils.escapeForXmlAttributeApos(to) + "'" : "";
+            send("<iq type='result'" + idAttribute + from + "/>");
+        }
+    }
+
+    private void handleMessage(XmlPullParser parser) throws XmlPullParserException, IOException {
+        final int depth = parser.getDepth();
+        String json = null;
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+            if (event == XmlPullParser.START_TAG && Util.FCM_ELEMENT_NAME.equals(parser.getName())) {
+                json = parser.nextText();
+            }
+        }
+        if (json != null) {
+            handlePacket(json);
+        }
+    }
+
+    private void skipElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+        final int depth = parser.getDepth();
+        while (parser.next() != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+            // skip the children
+        }
+    }
+
+    /**
+     * Handles a JSON packet from the client: a downstream message, or an ack of an upstream message or receipt
+     */
+    private void handlePacket(String json) {
+        final JsonNode packet;
+        try {
+            packet = mapper.readTree(json);
+        } catch (IOException e) {
+            logger.info("[sim-{}] Invalid JSON received: {}", sessionId, json);
+            simulator.onDownstreamReceived();
+            sendNack(null, null, "INVALID_JSON");
+            return;
+        }
+        final String messageType = packet.path("message_type").asText(null);
+        if ("ack".equals(messageType) || "nack".equals(messageType)) {
+            simulator.onAckReceived();
+            return;
+        }
+        simulator.onDownstreamReceived();
+        final String messageId = packet.path("message_id").asText(null);
+        final String to = packet.path("to").asText(null);
+        final boolean receiptRequested = packet.path("delivery_receipt_requested").asBoolean(false);
+        final String errorCode;
+        if (draining) {
+            errorCode = "CONNECTION_DRAINING";
+        } else if (messageId == null) {
+            errorCode = "INVALID_JSON";
+        } else {
+            errorCode = simulator.nextNackErrorCode();
+        }
+        final Runnable answer = () -> {
+            if (errorCode != null) {
+                sendNack(messageId, to, errorCode);
+            } else {
+                sendAck(messageId, to);
+                if (receiptRequested) {
+                    final long deliveryLatency = simulator.nextDeliveryLatency();
+                    if (deliveryLatency > 0) {
+                        simulator.getScheduler().schedule(() -> sendReceipt(messageId, to), deliveryLatency,
+                                TimeUnit.MILLISECONDS);
+                    } else {
+                        sendReceipt(messageId, to);
+                    }
+                }
+            }
+        };
+        final long latency = simulator.nextAckLatency();
+        if (latency > 0) {
+            simulator.getScheduler().schedule(answer, latency, TimeUnit.MILLISECONDS);
+        } else {
+            answer.run();
+        }
+    }
+
+    private void sendAck(String messageId, String to) {
+        final ObjectNode ack = mapper.createObjectNode();
+        ack.put("message_type", "ack");
+        ack.put("from", to);
+        ack.put("message_id", messageId);
+        if (sendPacket(ack)) {
+            simulator.onAckSent();
+        }
+    }
+
+    private void sendNack(String messageId, String to, String errorCode) {
+        final ObjectNode nack = mapper.createObjectNode();
+        nack.put("message_type", "nack");
+        nack.put("from", to);
+        nack.put("message_id", messageId);
+        nack.put("error", errorCode);
+        nack.put("error_description", "Simulated " + errorCode);
+        if (sendPacket(nack)) {
+            simulator.onNackSent(errorCode);
+        }
+    }
+
+    private void sendReceipt(String messageId, String to) {
+        final ObjectNode receipt = mapper.createObjectNode();
+        receipt.put("message_type", "receipt");
+        receipt.put("message_id", "dr2:" + messageId);
+        receipt.put("from", FCM_DOMAIN);
+        receipt.put("category", SIMULATOR_CATEGORY);
+        final ObjectNode data = receipt.putObject("data");
+        data.put("message_status", "MESSAGE_SENT_TO_DEVICE");
+        data.put("original_message_id", messageId);
+        data.put("device_registration_id", to);
+        data.put("message_sent_timestamp", String.valueOf(Util.getCurrentTimeMillis()));
+        if (sendPacket(receipt)) {
+            simulator.onReceiptSent();
+        }
+    }
+
+    void sendUpstream(String messageId, String from, Map<String, String> dataPayload) {
+        final ObjectNode upstream = mapper.createObjectNode();
+        upstream.put("category", SIMULATOR_CATEGORY);
+        upstream.put("message_id", messageId);
+        upstream.put("from", from);
+        final ObjectNode data = upstream.putObject("data");
+        dataPayload.forEach(data::put);
+        if (sendPacket(upstream)) {
+            simulator.onUpstreamSent();
+        }
+    }
+
+    /**
+     * Sends the CONNECTION_DRAINING control message and closes the connection after the drain close delay
+     */
+    void drain() {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        logger.info("[sim-{}] Draining the connection", sessionId);
+        final ObjectNode control = mapper.createObjectNode();
+        control.put("message_type", "control");
+        control.put("control_type", "CONNECTION_DRAINING");
+        sendPacket(control);
+        simulator.getScheduler().schedule(this::closeStream, simulator.getDrainCloseDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    private boolean sendPacket(ObjectNode packet) {
+        return send("<message><" + Util.FCM_ELEMENT_NAME + " xmlns='" + Util.FCM_NAMESPACE + "'>"
+                + StringUtils.escapeForXmlText(packet.toString()) + "</" + Util.FCM_ELEMENT_NAME + "></message>");
+    }
+
+    private boolean send(String xml) {
+        synchronized (writer) {
+            if (closed.get()) {
+                return false;
+            }
+            try {
+                writer.write(xml);
+                writer.flush();
+                return true;
+            } catch (IOException e) {
+                logger.info("[sim-{}] Error writing to the connection. Error: {}", sessionId, e.getMessage());
+            }
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * Closes the XMPP stream and then the socket, if the client does not close it first
+     */
+    private void closeStream() {
+        if (streamClosed.compareAndSet(false, true)) {
+            send("</stream:stream>");
+            try {
+                simulator.getScheduler().schedule(this::close, STREAM_CLOSE_TIMEOUT_IN_MILLI, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                close(); // the simulator is stopping
+            }
+        }
+    }
+
+    /**
+     * Closes the socket abruptly
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.info("[sim-{}] Error closing the connection. Error: {}", sessionId, e.getMessage());
+        }
+        simulator.onSessionClosed(this);
+        logger.info("[sim-{}] Connection closed", sessionId);
+    }
+
+    boolean isBound() {
+        return bound && !draining && !closed.get();
+    }
+
+}